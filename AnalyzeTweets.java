@@ -1,6 +1,8 @@
-import twitter4j.Status;
 import java.io.*;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author Alexander Hamme
@@ -10,94 +12,369 @@ public class AnalyzeTweets {
 
     private static SeparateChainingHashST<HashThis,User> tweets=new SeparateChainingHashST<>(100000);
                                                     // tweets arranged in a hash table.
+    private static boolean probing=false; // -probing: find the user of each loaded tweet in a LinearProbingHashST
+    private static final Metrics.Histogram SCORING = Metrics.timer("analysis_pass_seconds", "time to score every user in one pass");
+    private static final Metrics.Counter FLAGGED = Metrics.counter("analysis_flagged_total", "users flagged as bots");
+    private static final int ROUNDS = 3; // passes timed for each number of threads of -threads 1,2,...
+    private static final String METRICS_FILE = "analysis.prom"; // metrics written when the analysis is done
     private static final int AVERAGE_AWAKE=17; //average time (in hours) americans are awake (Wikipedia)
     private static final int MIN_SLEEP=24-AVERAGE_AWAKE; //if the difference between the time two tweets were posted is less than this,
                             //the user is considered to be awake all the time between the two tweets
     /**
-     * Load tweets from a saved file of Status objects.
+     * Load tweets from a TweetArchive, or from its shards if it was split by ShardedArchive,
+     * then from the segments of its TweetLog not compacted into it yet.
      * Appends to current this.tweets all tweets not already stored.
      * @param filename Name of input file.
      */
-
-    /** loads tweets
-    *@param filename a file to read from
-    */
     private static void load(String filename) throws IOException, FileNotFoundException {
-
-        ObjectInputStream objInput = null;
-        FileInputStream fileInput = null;
-        
+        long start = System.nanoTime();
+        TweetEvents.Load event = new TweetEvents.Load();
+        event.begin();
         try {
-            
-            fileInput = new FileInputStream(filename);
-            objInput = new ObjectInputStream(fileInput);
-            
-            while(true) {
-                Status curr= (Status)objInput.readObject();
-                int hashedKey=tweets.hash(new HashThis(curr.getUser().getScreenName()));
-                User tree=tweets.getByHashedKey(hashedKey, new HashThis(curr.getUser().getScreenName()));
-                if (tree==null) {
-                    tree=new User();
-                    tree.put(curr.getCreatedAt(),curr);
-                    tweets.putByHashedKey(hashedKey,new HashThis(curr.getUser().getScreenName()),tree);
-                  
-
-                } else tree.put(curr.getCreatedAt(), curr);
+            loadAll(filename);
+        } finally {
+            Metrics.gauge("analysis_load_seconds", "time to load the archive").set((System.nanoTime() - start) / 1e9);
+            Metrics.gauge("analysis_users", "users loaded").set(tweets.size());
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = filename;
+                event.users = tweets.size();
+                for (SequentialSearchST<HashThis,User> i : tweets)
+                    for (User j : i) event.tweets += j.size();
+                long bytes = TweetLog.size(filename);
+                for (int k = 0, shards = ShardedArchive.shards(filename); k < shards; k++)
+                    bytes += new File(ShardedArchive.shardName(filename, k, shards)).length();
+                event.bytes = bytes;
+                event.commit();
             }
-        } catch (EOFException ignored) {
-            // Exception breaks the while loop, as expected
+        }
+    }
 
-        } catch (ClassNotFoundException e) {
-            // Unexpected exception
-           e.printStackTrace();
+    // load() without the metrics
+    private static void loadAll(String filename) throws IOException, FileNotFoundException {
+        if (ShardedArchive.shards(filename) > 0)
+            loadShards(filename);
 
+        // the users by name while loading, with -probing
+        LinearProbingHashST<HashThis,User> index = probing ? new LinearProbingHashST<>(tweets.size()) : null;
+        if (index!=null) {
+            for (SequentialSearchST<HashThis,User> i : tweets) // users of the shards may have newer tweets here
+                for (User j : i)
+                    index.put(new HashThis(j.userName()), j);
+        }
+        
+        try {
+            // the archive, and the checkpoints GatherTweets logged since its last compaction
+            TweetLog.replay(filename, false, curr -> { // the text is not analyzed
+                User tree=index!=null ? userOf(index, curr) : userOf(tweets, curr);
+                tree.put(curr.getCreatedAt(), curr);
+            });
+            if (index!=null)
+                for (User j : index)
+                    tweets.put(new HashThis(j.userName()), j);
         } finally {
-            if(objInput != null){
-                try {
-                    objInput.close();
-                } catch (Exception ex){
-                    ex.printStackTrace();
-                } 
-            }
-            if (fileInput != null){
-                try {
-                    fileInput.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
             System.out.println("Closed files");
         }
     }
 
     /**
-     * Print one particular Status.
+     * Load the shards of an archive at the same time, one thread per core, each into its
+     * own table, then move the users into this.tweets. A user's tweets are all in one
+     * shard, so only users are moved, not tweets.
+     * @param filename Name of the archive the shards were split from.
+     */
+    private static void loadShards(String filename) throws IOException {
+        int shards = ShardedArchive.shards(filename);
+        int threads = Runtime.getRuntime().availableProcessors();
+        long n;
+        if (probing) {
+            @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation; every part is a LinearProbingHashST<HashThis,User>
+            LinearProbingHashST<HashThis,User>[] parts = new LinearProbingHashST[shards];
+            for (int k = 0; k < shards; k++) parts[k] = new LinearProbingHashST<>();
+            n = ShardedArchive.load(filename, false, threads, k -> curr ->
+                    userOf(parts[k], curr).put(curr.getCreatedAt(), curr));
+            for (LinearProbingHashST<HashThis,User> part : parts)
+                for (User j : part)
+                    tweets.put(new HashThis(j.userName()), j);
+        } else {
+            @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation; every part is a SeparateChainingHashST<HashThis,User>
+            SeparateChainingHashST<HashThis,User>[] parts = new SeparateChainingHashST[shards];
+            for (int k = 0; k < shards; k++) parts[k] = new SeparateChainingHashST<>();
+            n = ShardedArchive.load(filename, false, threads, k -> curr ->
+                    userOf(parts[k], curr).put(curr.getCreatedAt(), curr));
+            for (SeparateChainingHashST<HashThis,User> part : parts)
+                for (SequentialSearchST<HashThis,User> i : part)
+                    for (User j : i)
+                        tweets.put(new HashThis(j.userName()), j);
+        }
+        System.out.println("Loaded " + n + " tweets from " + shards + " shards of " + filename);
+    }
+
+    /**
+     * Find the User of a tweet's author in a table being loaded, adding it if it is new
+     * @param table users by screen name
+     * @param curr the tweet
+     * @return the User stored in the table
+     */
+    private static User userOf(SeparateChainingHashST<HashThis,User> table, Tweet curr) {
+        HashThis key = new HashThis(curr.getScreenName());
+        int hashedKey = table.hash(key);
+        User tree = table.getByHashedKey(hashedKey, key);
+        if (tree == null) {
+            tree = new User(curr.getScreenName(), false); // only the tweet times are analyzed
+            table.putByHashedKey(hashedKey, key, tree);
+        }
+        return tree;
+    }
+
+    // userOf() for the tables of -probing
+    private static User userOf(LinearProbingHashST<HashThis,User> table, Tweet curr) {
+        HashThis key = new HashThis(curr.getScreenName());
+        int hashedKey = table.hash(key);
+        User tree = table.getByHashedKey(hashedKey, key);
+        if (tree == null) {
+            tree = new User(curr.getScreenName(), false);
+            table.putByHashedKey(hashedKey, key, tree);
+        }
+        return tree;
+    }
+
+    /**
+     * Print one particular Tweet.
      */
-    private static void printStatus(Status tweet) {
+    private static void printStatus(Tweet tweet) {
         if (tweet== null) return;
-        // Print out info about the Status
-        System.out.println("\n\n@" + tweet.getUser().getScreenName() + " (hashcode:"+tweets.hash( new HashThis(tweet.getUser().getScreenName()))+
+        // Print out info about the Tweet
+        System.out.println("\n\n@" + tweet.getScreenName() + " (hashcode:"+tweets.hash( new HashThis(tweet.getScreenName()))+
                 ") - " + tweet.getText());
-        System.out.println("date: " + tweet.getCreatedAt());
+        System.out.println("date: " + new Date(tweet.getCreatedAt()));
         System.out.println("Reply to: " + tweet.getInReplyToScreenName());
     }
 
+    /**
+     * Score every user of a memory-mapped TimelineIndex and print the ones that look like bots.
+     * Tweet times are read straight from the mapped file, so no User is built.
+     * @param filename index written by TimelineIndex.write
+     */
+    private static void analyzeMapped(String filename) throws IOException {
+        TimelineIndex index = new TimelineIndex(filename);
+        int scored = 0, flagged = 0;
+        TweetEvents.Analysis event = new TweetEvents.Analysis();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            for (int user = 0; user < index.users(); user++) {
+                if (index.count(user) <= 2) continue;
+                scored++;
+                double multiplier = sleepingTime(index.times(user));
+                if (multiplier > 1) {
+                    flagged++;
+                    FLAGGED.inc();
+                    System.out.println(index.screenName(user) + " " + multiplier);
+                }
+            }
+        } finally {
+            index.close();
+        }
+        commit(event, start, "mapped", scored, flagged);
+        System.out.println(flagged + " of " + index.users() + " users flagged");
+    }
+
+    /**
+     * Score an archive sorted by TweetArchive.sort in a single pass, one user at a time,
+     * and print the users that look like bots. Only the current user's tweet times are
+     * in memory, so the archive can be much larger than the heap.
+     * @param filename archive sorted by screen name, then creation time
+     */
+    private static void analyzeStream(String filename) throws IOException {
+        TweetArchive.Reader archive = new TweetArchive.Reader(filename, false);
+        int users = 0, scored = 0, flagged = 0;
+        TweetEvents.Analysis event = new TweetEvents.Analysis();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            String current = null;
+            Timeline timeline = null;
+            while (true) {
+                Tweet curr = archive.hasNext() ? archive.next() : null;
+                if (curr != null && curr.getScreenName().equals(current)) {
+                    timeline.put(curr.getCreatedAt(), null);
+                    continue;
+                }
+                // the previous user is complete
+                if (timeline != null && timeline.size() > 2) {
+                    scored++;
+                    double multiplier = sleepingTime(timeline.times());
+                    if (multiplier > 1) {
+                        flagged++;
+                        FLAGGED.inc();
+                        System.out.println(current + " " + multiplier);
+                    }
+                }
+                if (curr == null) break;
+                if (current != null && curr.getScreenName().compareTo(current) < 0)
+                    throw new IOException(filename + " is not sorted by screen name; use java TweetArchive -sort");
+                current = curr.getScreenName();
+                timeline = new Timeline(false);
+                timeline.put(curr.getCreatedAt(), null);
+                users++;
+            }
+        } finally {
+            archive.close();
+        }
+        commit(event, start, "stream", scored, flagged);
+        System.out.println(flagged + " of " + users + " users flagged");
+    }
+
+    // time an analysis pass, then fill in and commit its event, if it is recorded
+    private static void commit(TweetEvents.Analysis event, long start, String mode, int scored, int flagged) {
+        SCORING.time(start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.mode = mode;
+            event.scored = scored;
+            event.flagged = flagged;
+            event.commit();
+        }
+    }
+
+    /**
+     * Number of users scored and flagged by a part of an analysis pass
+     */
+    private static class Counts {
+        int scored;
+        int flagged;
+        final boolean update; // false to only count, e.g. for a pass that times the scoring again
+
+        Counts() {
+            this(true);
+        }
+
+        Counts(boolean update) {
+            this.update = update;
+        }
+
+        void score(User user) {
+            scored++;
+            if (update ? sleepingTime(user) : sleepingTime(user.timeline().times()) > 1) flagged++;
+        }
+
+        void add(Counts other) {
+            scored += other.scored;
+            flagged += other.flagged;
+        }
+    }
+
+    /**
+     * Score every user of the table on the first of the given numbers of threads, then time
+     * the scoring again on each of them, best of ROUNDS passes that only count the users,
+     * and print the speedup of each over the first one.
+     * @param threads numbers of threads to use, e.g. 1, 2, 4, ... 32
+     */
+    private static void analyzeParallel(int[] threads) throws Exception {
+        analyzeParallel(threads[0], true); // also lets the JIT compile the scoring before it is timed
+        if (threads.length == 1) return;
+        long first = 0;
+        for (int t = 0; t < threads.length; t++) {
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                analyzeParallel(threads[t], false);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            if (t == 0) first = best;
+            System.out.printf("%d threads: %.1f ms, speedup %.2f%n", threads[t], best / 1e6, (double) first / best);
+        }
+    }
+
+    /**
+     * Score every user of the table on a pool of the given number of threads.
+     * The table's parallel stream splits by ranges of chains; users are independent,
+     * so each part scores its own users and only the counts are merged.
+     * @param threads number of threads to use
+     * @param update false to only count the users that look like bots, without recording
+     *               the pass in the metrics or as an event
+     */
+    private static void analyzeParallel(int threads, boolean update) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        TweetEvents.Analysis event = new TweetEvents.Analysis();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            // a parallel stream started from a pool's task runs on that pool
+            Counts counts = pool.submit(() -> tweets.parallelStream()
+                    .filter(j -> j.size() > 2)
+                    .collect(() -> new Counts(update), Counts::score, Counts::add)).get();
+            if (update) // a pass that only times the scoring again is not another analysis
+                commit(event, start, "parallel", counts.scored, counts.flagged);
+            System.out.printf("%d of %d users flagged using %d threads in %.1f ms%n",
+                    counts.flagged, counts.scored, threads, (System.nanoTime() - start) / 1e6);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Usage: java AnalyzeTweets [-probing] [-threads n]         (-threads scores users on n threads;
+     *                                                             -probing loads through LinearProbingHashST tables)
+     *        java AnalyzeTweets -threads 1,2,4,8,16,32          (times the scoring on each number of threads)
+     *        java AnalyzeTweets -index sorted.arc alltweets.idx     (write a TimelineIndex from a sorted archive)
+     *        java AnalyzeTweets -mapped alltweets.idx               (analyze a mapped TimelineIndex)
+     *        java AnalyzeTweets -stream sorted.arc                  (analyze a sorted archive in one pass)
+     * Metrics of the run are written to METRICS_FILE at the end.
+     */
     public static void main(String args[]) throws Exception {
-        load("alltweets.dat");
+        try {
+            analyze(args);
+        } finally {
+            Metrics.write(METRICS_FILE);
+        }
+    }
+
+    private static void analyze(String args[]) throws Exception {
+        if (args.length >= 1 && args[0].equals("-probing")) {
+            probing = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length >= 3 && args[0].equals("-index")) {
+            int users = TimelineIndex.write(args[1], args[2]);
+            System.out.println("Wrote " + users + " users to " + args[2]);
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("-mapped")) {
+            analyzeMapped(args[1]);
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("-stream")) {
+            analyzeStream(args[1]);
+            return;
+        }
+        load("alltweets.arc");
+        if (args.length >= 2 && args[0].equals("-threads")) {
+            String[] counts = args[1].split(",");
+            int[] threads = new int[counts.length];
+            for (int t = 0; t < counts.length; t++) threads[t] = Integer.parseInt(counts[t]);
+            analyzeParallel(threads);
+            return;
+        }
+        Counts counts=new Counts();
+        TweetEvents.Analysis event=new TweetEvents.Analysis();
+        event.begin();
+        long start=System.nanoTime();
         for (SequentialSearchST<HashThis,User> i:tweets)
             if (i!=null)
                 for (User j:i) {
-                    if ((j!=null)&&(j.get().size()>2)) {
-                        sleepingTime(j);
+                    if ((j!=null)&&(j.size()>2)) {
+                        counts.score(j);
                     }
                 }
+        commit(event, start, "table", counts.scored, counts.flagged);
     }
 
     // Check if 'bot' is in the username
 
-     String checkName(User user) {
-        RedBlackBST<Date,Status> tree = user.get();
-        String username = tree.iterator().next().getUser().getScreenName();
+    static boolean checkName(User user) {
+        String username = user.userName();
         if (username.toLowerCase().contains("bot")) 
             return true;
         return false;
@@ -106,29 +383,52 @@ public class AnalyzeTweets {
     /**
      * This method tries to identify users that seem like they don't sleep
      * @param user
+     * @return true if the user seems to stay awake too long
+     */
+    private static boolean sleepingTime(User user) {
+        double multiplier=sleepingTime(user.timeline().times());
+        if (multiplier>1) {
+            FLAGGED.inc();
+            user.updateIsBot(multiplier);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the longest stretch a user seems to stay awake
+     * @param times sorted tweet times in millis, from position to limit
+     * @return the value to multiply isBot by; 1 if the user seems to sleep normally
      */
-    private static void sleepingTime(User user) {
+    static double sleepingTime(LongBuffer times) {
+        TweetEvents.Score event=new TweetEvents.Score();
+        event.begin();
+        double multiplier=awakeMultiplier(times);
+        event.end();
+        if (event.shouldCommit()) {
+            event.tweets=times.remaining();
+            event.multiplier=multiplier;
+            event.commit();
+        }
+        return multiplier;
+    }
+
+    // sleepingTime() without the event
+    private static double awakeMultiplier(LongBuffer times) {
         int maxAwake=MIN_SLEEP;
         int currentAwake=MIN_SLEEP;
-        RedBlackBST<Date,Status> tree=user.get();
-        Status prev=null;
-        String userName="";
-        for (Status status:tree) {
-            if (prev!=null) {
-                long diffInMiliSec=status.getCreatedAt().getTime()-prev.getCreatedAt().getTime();
-                if ((double)(diffInMiliSec/1000/60)/60 <= MIN_SLEEP) {
-                    currentAwake += (double)(diffInMiliSec/1000/60)/60;
-                    if (currentAwake>maxAwake)
-                        maxAwake = currentAwake;
-                } else
-                    currentAwake = MIN_SLEEP;
-            } else {
-                userName=status.getUser().getScreenName();
-            }
-            prev=status;
+        for (int i=times.position()+1;i<times.limit();i++) {
+            long diffInMiliSec=times.get(i)-times.get(i-1);
+            if ((double)(diffInMiliSec/1000/60)/60 <= MIN_SLEEP) {
+                currentAwake += (double)(diffInMiliSec/1000/60)/60;
+                if (currentAwake>maxAwake)
+                    maxAwake = currentAwake;
+            } else
+                currentAwake = MIN_SLEEP;
         }
         if (maxAwake>=AVERAGE_AWAKE) {
-            user.updateIsBot((double) maxAwake / AVERAGE_AWAKE);
+            return (double) maxAwake / AVERAGE_AWAKE;
         }
+        return 1;
     }
 }
@@ -0,0 +1,301 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Micro-benchmarks of the symbol tables, the archive loader and the bot detector,
+ * on synthetic datasets drawn from a fixed seed, so that runs measure the same work.
+ * <p>
+ * This is a stand-in for a JMH module, following the same rules, until the project
+ * has a build file to pull JMH in. Each benchmark runs in FORKS fresh JVMs of its own
+ * (JMH's {@code @Fork}), so that the profile the JIT gathered on one benchmark
+ * doesn't shape the code compiled for the next one. In each fork a batch of operations
+ * is run WARMUP times, then MEASURED times; the mean time per operation over every
+ * measured batch is printed, with its standard deviation between forks. The result of
+ * every operation goes to a {@link Blackhole}, so that the JIT can neither drop the
+ * work as dead code nor fold it into a constant.
+ * Run with a fixed heap (e.g. -Xms2g -Xmx2g), which the forks inherit, so that
+ * resizing the heap doesn't skew results.
+ */
+public class Benchmark {
+    public static final long SEED = 42;
+    private static final int FORKS = 3;     // JVMs each benchmark is run in
+    private static final int WARMUP = 5;    // batches run before measuring, in each fork
+    private static final int MEASURED = 10; // batches measured, in each fork
+    private static final long START = 1480000000000L; // createdAt of the first synthetic tweet
+
+    // every benchmark, as named by measure(); a fork runs the one named on its command line
+    private static final String[] BENCHMARKS = {
+            "RedBlackBST.put", "RedBlackBST sorted bulk build", "RedBlackBST.get", "RedBlackBST.iterator",
+            "SeparateChainingHashST.putByHashedKey", "SeparateChainingHashST.getByHashedKey", "HashThis.hashCode",
+            "TweetArchive.Reader times only", "TweetArchive.Reader with text",
+            "AnalyzeTweets.sleepingTime per user"};
+
+    private static String selected; // the benchmark this fork runs
+
+    /**
+     * Swallows results the way JMH's Blackhole does: each value is compared with
+     * volatile fields that never match it, which the JIT has to read and can't
+     * see through, so every value consumed must really be computed.
+     */
+    static final class Blackhole {
+        private volatile long l1 = 1, l2 = 2;  // never equal, so no long is both
+        private volatile double d1 = 1, d2 = 2;
+        private volatile Object o1 = new Object();
+        public Object leaked; // written only if the impossible happens
+
+        void consume(long v) {
+            if (v == l1 & v == l2) leaked = this;
+        }
+
+        void consume(double v) {
+            if (v == d1 & v == d2) leaked = this;
+        }
+
+        void consume(Object o) {
+            if (o == o1) leaked = o;
+        }
+    }
+
+    /**
+     * A batch of operations, giving each result to the blackhole
+     */
+    interface Batch {
+        void run(Blackhole bh);
+    }
+
+    /**
+     * Time a benchmark if this fork runs it, and print the time per operation of each measured batch
+     * @param name name of the benchmark, one of BENCHMARKS
+     * @param ops number of operations in a batch
+     * @param batch runs one batch
+     */
+    private static void measure(String name, int ops, Batch batch) {
+        if (!name.equals(selected)) return;
+        Blackhole bh = new Blackhole();
+        for (int i = 0; i < WARMUP; i++) batch.run(bh);
+        for (int i = 0; i < MEASURED; i++) {
+            long start = System.nanoTime();
+            batch.run(bh);
+            System.out.println((double) (System.nanoTime() - start) / ops);
+        }
+    }
+
+    /**
+     * Run a benchmark in FORKS fresh JVMs with the same JVM options and class path as this one,
+     * and print its mean time per operation
+     * @param name name of the benchmark
+     * @param n size of the datasets
+     * @param forks number of JVMs to run it in
+     */
+    private static void fork(String name, int n, int forks) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Benchmark");
+        command.add("-fork");
+        command.add(name);
+        command.add(Integer.toString(n));
+        double[] means = new double[forks];
+        double mean = 0;
+        for (int f = 0; f < forks; f++) {
+            Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            int batches = 0;
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                for (String line; (line = out.readLine()) != null; batches++) means[f] += Double.parseDouble(line);
+            }
+            if (process.waitFor() != 0 || batches != MEASURED) {
+                System.out.printf("%-40s failed in fork %d%n", name, f + 1);
+                return;
+            }
+            means[f] /= MEASURED;
+            mean += means[f] / forks;
+        }
+        double variance = 0;
+        if (forks > 1) for (double t : means) variance += (t - mean) * (t - mean) / (forks - 1);
+        System.out.printf("%-40s %12.1f ns/op  +- %8.1f  %14.0f ops/s%n", name, mean, Math.sqrt(variance), 1e9 / mean);
+    }
+
+    /**
+     * @param n number of keys
+     * @return the keys 0 to n-1 in an order shuffled with SEED
+     */
+    static long[] shuffled(int n) {
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) keys[i] = i;
+        SplittableRandom random = new SplittableRandom(SEED);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long swap = keys[i];
+            keys[i] = keys[j];
+            keys[j] = swap;
+        }
+        return keys;
+    }
+
+    /**
+     * @param n number of names
+     * @return n distinct screen names of 5 to 15 characters, drawn with SEED
+     */
+    static String[] screenNames(int n) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789_";
+        String[] names = new String[n];
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            name.setLength(0);
+            int length = 5 + random.nextInt(11);
+            for (int k = 0; k < length - 1; k++) name.append(chars.charAt(random.nextInt(chars.length())));
+            names[i] = name.append(i).toString(); // the index keeps them distinct
+        }
+        return names;
+    }
+
+    /**
+     * @param users number of users
+     * @param perUser tweets of each user
+     * @return the sorted tweet times of each user over about a month, drawn with SEED;
+     * some users post around the clock, the others mostly while awake
+     */
+    static long[][] timelines(int users, int perUser) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        long[][] times = new long[users][perUser];
+        for (int u = 0; u < users; u++) {
+            boolean bot = u % 10 == 0;
+            long t = START;
+            for (int k = 0; k < perUser; k++) {
+                t += 60000L * (1 + random.nextInt(bot ? 120 : 600));
+                long hour = t / 3600000 % 24;
+                if (!bot && hour < 7) t += (7 - hour) * 3600000; // asleep until 7
+                times[u][k] = t;
+            }
+        }
+        return times;
+    }
+
+    private static void redBlackBST(int n) {
+        long[] keys = shuffled(n);
+        Date[] dates = new Date[n];
+        for (int i = 0; i < n; i++) dates[i] = new Date(START + keys[i] * 1000);
+        measure("RedBlackBST.put", n, bh -> {
+            RedBlackBST<Date, Long> tree = new RedBlackBST<>();
+            for (int i = 0; i < n; i++) tree.put(dates[i], keys[i]);
+            bh.consume(tree);
+        });
+
+        Date[] sorted = new Date[n];
+        Long[] sortedValues = new Long[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = new Date(START + i * 1000L);
+            sortedValues[i] = (long) i;
+        }
+        measure("RedBlackBST sorted bulk build", n, bh -> bh.consume(new RedBlackBST<>(sorted, sortedValues)));
+
+        RedBlackBST<Date, Long> tree = new RedBlackBST<>();
+        for (int i = 0; i < n; i++) tree.put(dates[i], keys[i]);
+        measure("RedBlackBST.get", n, bh -> {
+            for (int i = n - 1; i >= 0; i--) bh.consume(tree.get(dates[i]));
+        });
+        measure("RedBlackBST.iterator", n, bh -> {
+            for (Iterator<Long> values = tree.iterator(); values.hasNext(); ) bh.consume(values.next());
+        });
+    }
+
+    private static void separateChainingHashST(int n) {
+        String[] names = screenNames(n);
+        HashThis[] keys = new HashThis[n];
+        for (int i = 0; i < n; i++) keys[i] = new HashThis(names[i]);
+        measure("SeparateChainingHashST.putByHashedKey", n, bh -> {
+            SeparateChainingHashST<HashThis, Integer> table = new SeparateChainingHashST<>();
+            for (int i = 0; i < n; i++) table.putByHashedKey(table.hash(keys[i]), keys[i], i);
+            bh.consume(table);
+        });
+
+        SeparateChainingHashST<HashThis, Integer> table = new SeparateChainingHashST<>();
+        for (int i = 0; i < n; i++) table.put(keys[i], i);
+        table.finishResize();
+        long[] order = shuffled(n);
+        measure("SeparateChainingHashST.getByHashedKey", n, bh -> {
+            for (long i : order) bh.consume(table.getByHashedKey(table.hash(keys[(int) i]), keys[(int) i]));
+        });
+        measure("HashThis.hashCode", n, bh -> { // a new key each time, as for every incoming tweet
+            for (String name : names) bh.consume(new HashThis(name).hashCode());
+        });
+    }
+
+    private static void archive(int n) throws IOException {
+        String[] names = screenNames(Math.max(1, n / 20));
+        SplittableRandom random = new SplittableRandom(SEED);
+        File file = File.createTempFile("benchmark", ".arc");
+        file.deleteOnExit();
+        TweetArchive.Writer out = new TweetArchive.Writer(file.getPath());
+        try {
+            long time = START;
+            for (int i = 0; i < n; i++) {
+                String name = names[random.nextInt(names.length)];
+                time += random.nextInt(2000);
+                out.add(new Tweet(START + i, name.hashCode(), name, time, "synthetic tweet number " + i + " by @" + name,
+                        random.nextInt(10) == 0 ? names[random.nextInt(names.length)] : null, -1, Double.NaN, Double.NaN));
+            }
+        } finally {
+            out.close();
+        }
+        for (boolean withText : new boolean[] {false, true}) {
+            measure("TweetArchive.Reader " + (withText ? "with text" : "times only"), n, bh -> {
+                try {
+                    TweetArchive.Reader in = new TweetArchive.Reader(file.getPath(), withText);
+                    try {
+                        while (in.hasNext()) bh.consume(in.next());
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+
+    private static void sleepingTime(int users) {
+        long[][] times = timelines(users, 200);
+        LongBuffer[] buffers = new LongBuffer[users];
+        for (int u = 0; u < users; u++) buffers[u] = LongBuffer.wrap(times[u]);
+        measure("AnalyzeTweets.sleepingTime per user", users, bh -> {
+            for (LongBuffer buffer : buffers) bh.consume(AnalyzeTweets.sleepingTime(buffer));
+        });
+    }
+
+    /**
+     * Usage: java -Xms2g -Xmx2g Benchmark [name] [n] [forks]
+     * runs the benchmarks whose name contains the given text (all of them by default) on datasets of n items,
+     * each in the given number of JVMs (3 by default)
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 3 && args[0].equals("-fork")) { // in a fork: run one benchmark, print its batches
+            selected = args[1];
+            int n = Integer.parseInt(args[2]);
+            if (selected.startsWith("RedBlackBST")) redBlackBST(n);
+            else if (selected.startsWith("SeparateChainingHashST") || selected.startsWith("HashThis")) separateChainingHashST(n);
+            else if (selected.startsWith("TweetArchive")) archive(16 * n);
+            else if (selected.startsWith("AnalyzeTweets")) sleepingTime(n / 16);
+            return;
+        }
+        String only = args.length > 0 ? args[0] : "";
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 16;
+        int forks = args.length > 2 ? Integer.parseInt(args[2]) : FORKS;
+        for (String name : BENCHMARKS)
+            if (name.contains(only)) fork(name, n, forks);
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over tweet ids, to tell in a couple of hashes that a tweet has not been
+ * stored yet. A negative is certain; a positive is wrong with the false-positive
+ * probability the filter was sized for, which grows as more ids than expected are added.
+ * Bits are set with compare-and-set, so collectors can add ids at the same time.
+ * <p>
+ * The k bit positions of an id come from two 64-bit mixes of it (Kirsch and Mitzenmacher),
+ * in a table of a power of two bits. They are independent loads, so their cache misses
+ * overlap; a filter blocked by cache line was hardly faster and had a false-positive rate
+ * a hundred times higher.
+ *
+ * File layout (big-endian): int MAGIC, int VERSION, int hashes, int 0, long expected,
+ * long ids, long bitsSet, long stored, long words, then the words of the table.
+ * The stored count saved with the filter tells a loader whether it still matches the archive.
+ */
+public class BloomFilter {
+    public static final int MAGIC = 0x5457424c; // "TWBL"
+    public static final int VERSION = 1;
+
+    private final AtomicLongArray words;
+    private final long mask;                        // number of bits - 1
+    private final int hashes;                       // bits set per id
+    private final long expected;                    // ids the filter was sized for
+    private final AtomicLong ids = new AtomicLong();     // ids added that were not in the filter
+    private final AtomicLong bitsSet = new AtomicLong(); // bits set to 1
+    private long stored = -1;                       // tweets stored when the filter was saved; -1 if never saved
+
+    /**
+     * @param expected number of ids the filter will hold
+     * @param fpp false-positive probability wanted once it holds them
+     */
+    public BloomFilter(long expected, double fpp) {
+        if (expected < 1) throw new IllegalArgumentException(expected + " expected ids");
+        if (fpp <= 0 || fpp >= 1) throw new IllegalArgumentException("false-positive probability " + fpp);
+        double bits = -expected * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        long size = Math.max(64, Long.highestOneBit((long) Math.ceil(bits) - 1) << 1); // rounded up to a power of 2
+        if (size / 64 > Integer.MAX_VALUE) throw new IllegalArgumentException(expected + " ids is too many");
+        this.expected = expected;
+        this.hashes = Math.max(1, (int) Math.round(bits / expected * Math.log(2)));
+        this.mask = size - 1;
+        this.words = new AtomicLongArray((int) (size / 64));
+    }
+
+    private BloomFilter(int hashes, long expected, long words) {
+        this.expected = expected;
+        this.hashes = hashes;
+        this.mask = words * 64 - 1;
+        this.words = new AtomicLongArray((int) words);
+    }
+
+    // finalizer of SplitMix64: every bit of the id changes about half of the bits of the result
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Add an id to the filter
+     * @param id a tweet id
+     * @return true if the id was certainly not in the filter; false if it probably was
+     */
+    public boolean add(long id) {
+        long h1 = mix(id), h2 = mix(h1) | 1; // odd, so the k positions differ
+        int changed = 0;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + i * h2) & mask;
+            int w = (int) (bit >>> 6);
+            long b = 1L << bit;
+            long old = words.get(w);
+            while ((old & b) == 0) {
+                if (words.compareAndSet(w, old, old | b)) {
+                    changed++;
+                    break;
+                }
+                old = words.get(w);
+            }
+        }
+        if (changed == 0) return false;
+        bitsSet.addAndGet(changed);
+        ids.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param id a tweet id
+     * @return false if the id is certainly not in the filter; true if it probably is
+     */
+    public boolean mightContain(long id) {
+        long h1 = mix(id), h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + i * h2) & mask;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of ids added that were not in the filter
+     */
+    public long ids() {
+        return ids.get();
+    }
+
+    /**
+     * @return the number of ids the filter was sized for
+     */
+    public long expected() {
+        return expected;
+    }
+
+    /**
+     * @return the number of tweets stored when the filter was saved; -1 if it never was
+     */
+    public long stored() {
+        return stored;
+    }
+
+    /**
+     * @return the probability that an id never added is reported as in the filter, from the bits set so far
+     */
+    public double fpp() {
+        return Math.pow((double) bitsSet.get() / (mask + 1), hashes);
+    }
+
+    /**
+     * @return the size of the table, in bytes
+     */
+    public long bytes() {
+        return (mask + 1) / 8;
+    }
+
+    public String toString() {
+        return String.format("%d ids of %d expected, %d hashes, %.1f MB, false positives %.2e",
+                ids(), expected, hashes, bytes() / 1048576.0, fpp());
+    }
+
+    /**
+     * Write the filter to a file, replacing it only once the new copy is complete.
+     * Ids added meanwhile may or may not be saved.
+     * @param filename name of the file
+     * @param stored number of tweets stored with the ids in the filter
+     */
+    public void save(String filename, long stored) throws IOException {
+        File tmp = new File(filename + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(hashes);
+            out.writeInt(0);
+            out.writeLong(expected);
+            out.writeLong(ids.get());
+            out.writeLong(bitsSet.get());
+            out.writeLong(stored);
+            out.writeLong(words.length());
+            for (int w = 0; w < words.length(); w++) out.writeLong(words.get(w));
+        } finally {
+            out.close();
+        }
+        File file = new File(filename);
+        if (file.exists() && !file.delete() || !tmp.renameTo(file))
+            throw new IOException("could not replace " + filename);
+        this.stored = stored;
+    }
+
+    /**
+     * Read a filter written by save
+     * @param filename name of the file
+     * @return the filter
+     */
+    public static BloomFilter load(String filename) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(filename + " is not a Bloom filter");
+            int hashes = in.readInt();
+            in.readInt();
+            long expected = in.readLong();
+            long ids = in.readLong();
+            long bitsSet = in.readLong();
+            long stored = in.readLong();
+            long words = in.readLong();
+            if (hashes < 1 || words < 1 || words > Integer.MAX_VALUE || Long.bitCount(words) != 1)
+                throw new IOException(filename + " is corrupt");
+            BloomFilter filter = new BloomFilter(hashes, expected, words);
+            for (int w = 0; w < words; w++) filter.words.set(w, in.readLong());
+            filter.ids.set(ids);
+            filter.bitsSet.set(bitsSet);
+            filter.stored = stored;
+            return filter;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Unit tests the {@code BloomFilter}: adds n random ids, checks that none of them is
+     * reported missing, measures the false-positive rate on ids never added against the
+     * estimate, times both operations and checks that a saved filter loads back the same.
+     * Usage: java BloomFilter [n] [fpp]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        double fpp = args.length > 1 ? Double.parseDouble(args[1]) : 1e-4;
+        long[] added = new long[n];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long first = 1000000000000000000L; // ids are increasing, as the ids of tweets
+        for (int i = 0; i < n; i++) added[i] = first += 2 + random.nextInt(1000);
+
+        BloomFilter filter = new BloomFilter(n, fpp);
+        long start = System.nanoTime();
+        for (long id : added) filter.add(id);
+        long addNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        int missing = 0;
+        for (long id : added) if (!filter.mightContain(id)) missing++;
+        long hitNanos = System.nanoTime() - start;
+        int falsePositives = 0;
+        for (int i = 0; i < n; i++) if (filter.mightContain(added[i] + 1)) falsePositives++; // never added: steps are > 1 apart
+        System.out.println(filter);
+        System.out.printf("add %.1f ns, lookup %.1f ns, %d added ids missing, false positives %.2e measured%n",
+                (double) addNanos / n, (double) hitNanos / n, missing, (double) falsePositives / n);
+
+        File file = File.createTempFile("bloom", ".ids");
+        file.deleteOnExit();
+        filter.save(file.getPath(), n);
+        BloomFilter loaded = load(file.getPath());
+        int differ = 0;
+        for (int i = 0; i < n; i++)
+            if (loaded.mightContain(added[i]) != filter.mightContain(added[i])
+                    || loaded.mightContain(added[i] + 1) != filter.mightContain(added[i] + 1)) differ++;
+        System.out.println("saved " + file.length() + " bytes, loaded back: " + loaded + (differ == 0 ? "" : ", " + differ + " ids DIFFER"));
+    }
+}
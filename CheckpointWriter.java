@@ -0,0 +1,226 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes checkpoints of the collected tweets on its own thread, so that the
+ * collection thread only pays for handing a batch over.
+ *
+ * The collector fills one batch while the writer appends the ones handed over
+ * before it to a TweetLog: batches are double-buffered through a bounded queue.
+ * The writer drains every batch waiting in the queue and appends them with one
+ * flush. When the disk falls behind and the queue is full, submit() blocks, which
+ * slows collection down instead of letting unwritten tweets pile up on the heap.
+ */
+public class CheckpointWriter implements Closeable {
+    public static final int QUEUE_BATCHES = 16; // batches waiting to be written before submit() blocks
+
+    private static final List<Tweet> STOP = new ArrayList<Tweet>(); // queued by close()
+
+    private final TweetLog log;
+    private final ArrayBlockingQueue<List<Tweet>> queue;
+    private final Thread writer;
+    private volatile IOException failure; // first error of the writer, reported by the next submit
+    private volatile long written;        // tweets appended to the log
+    private long blockedNanos;            // time submit() waited for room in the queue
+    private boolean closed;               // set by close(), under the write lock of state
+    private final ReentrantReadWriteLock state = new ReentrantReadWriteLock(); // read-locked by each submit()
+
+    /**
+     * Start a writer thread appending to a log
+     * @param log log to append the batches to; closed by close()
+     */
+    public CheckpointWriter(TweetLog log) {
+        this(log, QUEUE_BATCHES);
+    }
+
+    /**
+     * @param log log to append the batches to; closed by close()
+     * @param capacity number of batches that can wait to be written
+     */
+    public CheckpointWriter(TweetLog log, int capacity) {
+        this.log = log;
+        queue = new ArrayBlockingQueue<List<Tweet>>(capacity);
+        writer = new Thread(this::write, "CheckpointWriter");
+        writer.start();
+    }
+
+    /**
+     * Hand a batch of new tweets to the writer. The batch must not be changed afterwards.
+     * Blocks while the queue is full. Several threads can submit at once; a batch is
+     * either queued before close() queues STOP, and written, or refused.
+     * @param batch tweets to checkpoint
+     * @throws IOException if the writer failed or is closed
+     */
+    public void submit(List<Tweet> batch) throws IOException, InterruptedException {
+        if (failure != null) throw failure;
+        if (batch.isEmpty()) return;
+        state.readLock().lock(); // close() waits for the batch to be queued
+        try {
+            if (closed) throw new IOException("checkpoint writer is closed");
+            if (!queue.offer(batch)) { // the disk is behind: wait for it
+                long start = System.nanoTime();
+                queue.put(batch);
+                synchronized (this) {
+                    blockedNanos += System.nanoTime() - start;
+                }
+            }
+        } finally {
+            state.readLock().unlock();
+        }
+    }
+
+    // runs on the writer thread until STOP is queued
+    private void write() {
+        ArrayList<List<Tweet>> drained = new ArrayList<List<Tweet>>();
+        ArrayList<Tweet> merged = new ArrayList<Tweet>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                drained.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(drained);
+            for (List<Tweet> batch : drained) {
+                if (batch == STOP) stop = true;
+                else merged.addAll(batch);
+            }
+            try {
+                if (!merged.isEmpty()) written += log.append(merged);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                e.printStackTrace();
+            }
+            drained.clear();
+            merged.clear();
+        }
+    }
+
+    /**
+     * @return the number of tweets written to the log so far
+     */
+    public long written() {
+        return written;
+    }
+
+    /**
+     * @return the number of batches waiting to be written
+     */
+    public int pending() {
+        return queue.size();
+    }
+
+    /**
+     * @return the total time submit() spent waiting for the writer, in milliseconds
+     */
+    public synchronized long blockedMillis() {
+        return blockedNanos / 1000000;
+    }
+
+    /**
+     * Write every batch submitted so far, stop the writer and close the log.
+     * Waits for the submits in progress to queue their batches; later ones are refused.
+     * Closing a closed writer does nothing.
+     */
+    public void close() throws IOException {
+        state.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+        } finally {
+            state.writeLock().unlock();
+        }
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Submits the tweets of an archive in batches, as GatherTweets does, and reports
+     * how long submitting took compared with appending inline.
+     * Usage: java CheckpointWriter alltweets.arc [batchSize] [queueBatches]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java CheckpointWriter alltweets.arc [batchSize] [queueBatches]");
+            System.exit(-1);
+        }
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : QUEUE_BATCHES;
+        ArrayList<Tweet> all = new ArrayList<Tweet>();
+        TweetArchive.Reader in = new TweetArchive.Reader(args[0]);
+        try {
+            while (in.hasNext()) all.add(in.next());
+        } finally {
+            in.close();
+        }
+
+        for (int async = 0; async < 2; async++) {
+            String base = File.createTempFile("checkpoint", ".arc", new File(".")).getPath();
+            new File(base).delete();
+            TweetLog log = new TweetLog(base);
+            CheckpointWriter checkpoints = async == 1 ? new CheckpointWriter(log, capacity) : null;
+            long start = System.nanoTime();
+            for (int i = 0; i < all.size(); i += batchSize) {
+                List<Tweet> batch = new ArrayList<Tweet>(all.subList(i, Math.min(i + batchSize, all.size())));
+                if (checkpoints != null) checkpoints.submit(batch);
+                else log.append(batch);
+            }
+            long collector = System.nanoTime() - start;
+            if (checkpoints != null) checkpoints.close();
+            else log.close();
+            long total = System.nanoTime() - start;
+            System.out.printf("%s: collection thread busy %.1f ms, done after %.1f ms%s%n",
+                    async == 1 ? "CheckpointWriter" : "inline appends  ", collector / 1e6, total / 1e6,
+                    checkpoints == null ? "" : ", blocked " + checkpoints.blockedMillis() + " ms");
+            new File(base).delete();
+            new File(base + ".log.compacted").delete();
+            new File(base + ".log.lock").delete();
+        }
+
+        // submits racing with close(): every batch must be either written or refused
+        String base = File.createTempFile("checkpoint", ".arc", new File(".")).getPath();
+        new File(base).delete();
+        CheckpointWriter checkpoints = new CheckpointWriter(new TweetLog(base), 2);
+        int threads = 4, perThread = Math.min(all.size() / threads, 20000);
+        long[] refused = new long[threads];
+        Thread[] submitters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            submitters[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    try {
+                        checkpoints.submit(new ArrayList<Tweet>(all.subList(id * perThread + i, id * perThread + i + 1)));
+                    } catch (IOException e) {
+                        refused[id]++;
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            submitters[t].start();
+        }
+        Thread.sleep(20);
+        checkpoints.close();
+        long lost = (long) threads * perThread - checkpoints.written();
+        for (Thread submitter : submitters) submitter.join();
+        for (long r : refused) lost -= r;
+        System.out.println("close() during submits: " + checkpoints.written() + " written, "
+                + ((long) threads * perThread - checkpoints.written()) + " refused" + (lost == 0 ? "" : ", " + lost + " LOST"));
+        new File(base).delete();
+        new File(base + ".log.compacted").delete();
+        new File(base + ".log.lock").delete();
+    }
+}
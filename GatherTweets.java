@@ -11,6 +11,10 @@ import twitter4j.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Constructing a GatherTweets object will perform a single search
@@ -19,23 +23,37 @@ import java.util.*;
  */
 public class GatherTweets {
     private static final int MAXTWEETS = 500; // max tweets at once
-    private static final int GATHER_DELAY = 60; //delay between two calls to collectTweets (in seconds)
-    private static final int EXCEPTION_DELAY = 60*30; //30 mins, the delay to wait if twitter shuts down the flow of tweets
+    private static final int SEARCHES_PER_WINDOW = 180; // search requests allowed by Twitter per rate-limit window
+    private static final int RATE_WINDOW = 15*60; // length of a rate-limit window (in seconds)
+    private static final int COLLECTORS = 8; // searches running at the same time
+    private static final int MAX_PAGES = 5; // most pages read to catch up with a location's since id
+    private static final double ID_FPP = 1e-4; // fraction of new tweets the id filter may mistake for duplicates
+    private static final String METRICS_FILE = "metrics.prom"; // metrics in the Prometheus text format
+    private static final int METRICS_SECONDS = 15; // time between two writes of METRICS_FILE
     private static final int RADIUS= 20*(int)(6*(1.60934)/Math.sqrt(Math.PI));//default radius (in km) of locations searched.
     // Currently the search area will be 720 miles squared, the average area of a town in the USA (multiplied by 10 to get more data) according to Wikipedia.
-    private static int SAVE_COUNTER = 10;
-    private static String FILE_NAME = "alltweets.dat";
-    private static String BACKUP_FILE_NAME = "alltweets2.dat";
-    private static int FAIL_COUNTER = 2;
+    private static String FILE_NAME = "alltweets.arc";
     private static int toCollect; // number of tweets to be collected
     private static Location[] locs; //Locations to collect tweets from. The number of tweets collected from each city will be proportional to its population.
-    private static int collected; //number of tweets collected
-    private static int currLoc; //the current location from where the tweets are currently being collected, represented by the index in the Location list.
-    private static SeparateChainingHashST<HashThis,User> tweets; // tweets arranged in a hash table.
-    private static Query query; // query that generated the tweets
-    private Timer timer; // timer that allows the app to gather tweets every n minutes
-    private static int counter; // Increments each round of collectTweets, after every 10 collections, save to file - ensures data is saved in case process is interuppted
-    private static int failureCounter; // Increment each time Twitter gives 0 responses - at a certain number, wait for a delay before requesting again
+    private static AtomicInteger collected=new AtomicInteger(); //number of tweets collected
+    private static LocationScheduler places; //picks the location of each search by population and by how many new tweets it has been giving
+    private static StripedHashST<HashThis,User> tweets; // tweets arranged in a hash table, shared by the collector and savers
+    private static CheckpointWriter checkpoints; // appends the new tweets of every search to the log of FILE_NAME, on its own thread
+    private static ConcurrentLinkedQueue<User> dirty=new ConcurrentLinkedQueue<User>(); // users with tweets not checkpointed yet, each queued once
+    private static BloomFilter seen; // ids of the tweets stored, saved to FILE_NAME.ids when collection ends
+    private static final Metrics.Histogram SEARCH=Metrics.timer("tweets_search_seconds", "time of a search, successful or not");
+    private static final Metrics.Counter INSERTED=Metrics.counter("tweets_inserted_total", "new tweets stored");
+    private static final Metrics.Counter DUPLICATES=Metrics.counter("tweets_duplicates_total", "tweets returned by searches that were already stored");
+    private static final Metrics.Counter FILTERED=Metrics.counter("tweets_filtered_total", "duplicates rejected by the id filter without looking up their user");
+    private static final Metrics.Histogram CHAIN_LENGTH=Metrics.histogram("tweets_table_chain_length",
+            "length of each chain of a segment of the users table, sampled whenever the segment has grown");
+    private static int[] sampledCapacity; // chains of each segment of tweets when its chain lengths were last sampled
+    private static Query query; // query that generated the tweets; every search runs a copy of it for one location
+    private ExecutorService pool; // runs the collectors
+    private AtomicInteger running; // collectors still running; the last one to stop closes the log
+    private TweetSource source; // the search API, or a replay of an archive
+    private SearchScheduler scheduler; // paces the searches of all collectors to the quota; null for no limit
+    private long started; // when collection started, in millis
 
     /**
      * Retrieve tweets based on typical Twitter search string.
@@ -45,110 +63,321 @@ public class GatherTweets {
      *              this constructor. PRECOND: locs!=null
      */
     public GatherTweets(Query query,int toCollectParam, Location[] newLocs) {
-        counter=0;
+        this(query, toCollectParam, newLocs, new TwitterSource(),
+                new SearchScheduler(SEARCHES_PER_WINDOW, RATE_WINDOW), COLLECTORS);
+    }
+
+    /**
+     * Retrieve tweets from any source, searching several locations at the same time.
+     * @param query valid Query object
+     * @param toCollectParam number of tweets to get
+     * @param newLocs  locations to collect tweets from. PRECOND: locs!=null
+     * @param source where the tweets come from
+     * @param scheduler paces the searches to the rate limit; null if the source paces itself
+     * @param threads number of searches running at the same time
+     */
+    public GatherTweets(Query query,int toCollectParam, Location[] newLocs, TweetSource source, SearchScheduler scheduler, int threads) {
         this.query=query;
+        this.source=source;
+        this.scheduler=scheduler;
+        started=System.currentTimeMillis();
 		toCollect=Math.abs(toCollectParam); //in case it is negative
         locs = newLocs;
-        currLoc=0;
-        query.setGeoCode(locs[currLoc].getLocation(),RADIUS,Query.KILOMETERS);
+        places=new LocationScheduler(locs);
         query.setResultType(Query.ResultType.recent);
-        timer=new Timer();
-        timer.schedule(new CollectTweetsFurther(),(long)1000*GATHER_DELAY);
+        pool=Executors.newFixedThreadPool(threads);
+        running=new AtomicInteger(threads);
+        for (int i=0;i<threads;i++)
+            pool.execute(new Collector());
 	}
 
     /**
-     * Class containing a method that decides how to collect the next portion of tweets
-     * Handles potential shutdowns from Twitter and decides how long to wait before requesting more tweets
+     * One of the threads searching the locations in turn, as long as tweets are needed.
+     * Together they make as many searches as the scheduler allows, which paces them by the
+     * rate-limit status of the last search and backs off when Twitter throttles them
      */
-	public class CollectTweetsFurther extends TimerTask {
+	public class Collector implements Runnable {
         @Override
         public void run() {
-            if (collected<toCollect) {     
-                int tmp=collectTweets(MAXTWEETS);
-                collected+=tmp;
-                if (tmp!=0) {
-                    failureCounter = 0;
-                    timer.schedule(new CollectTweetsFurther(),(long)1000*GATHER_DELAY);
-                } else {
-                    failureCounter++;
-                    if (failureCounter>FAIL_COUNTER)
-                        timer.schedule(new CollectTweetsFurther(),(long)1000*EXCEPTION_DELAY);
-                    else
-                        timer.schedule(new CollectTweetsFurther(),(long)1000*GATHER_DELAY);
+            try {
+                while (collected.get()<toCollect && source.hasMore()) {
+                    if (scheduler!=null) scheduler.acquire();
+                    collected.addAndGet(collectTweets(MAXTWEETS));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (running.decrementAndGet()==0) { //no tweets needed from any location
+                    pool.shutdown();
+                    closeCheckpoints();
+                    saveFilter(); // every id in it is in the archive now
+                    long seconds=Math.max(1, (System.currentTimeMillis()-started)/1000);
+                    System.out.println("Collected "+collected+" tweets in "+seconds+" s, "+collected.get()*60L/seconds+" tweets per minute");
+                    System.out.println("Id filter: "+seen+", "+FILTERED.get()+" duplicates rejected");
+                    Metrics.close(); // written one last time
                 }
-            } else { //no tweets needed from this location
-                save(FILE_NAME);
             }
         }
     }
 
     /**
-     * Collect tweets from one particular location
+     * Collect tweets from the location picked by the scheduler. Called by several collectors at the same time.
+     * Only tweets newer than the location's since id are asked for; if there are more of them than
+     * one page holds, up to MAX_PAGES pages are read, each one taking a slot of the scheduler.
+     * The since id only moves up once the pages reach it; a visit that stops before leaves a
+     * max id for the next one to read on from, so no tweet in between is skipped. No other
+     * collector visits the location meanwhile, so those ids are moved by one visit at a time.
      * @param numtweets number of tweets to gather
      * @return the number of new tweets collected
      */
-    private int collectTweets(int numtweets) {
-        query.setCount(numtweets);
-        query.setGeoCode(locs[currLoc].getLocation(),RADIUS,Query.KILOMETERS);
-        currLoc=(++currLoc)%locs.length;
-        Twitter twitter = new TwitterFactory().getInstance();
-        QueryResult result = null;
+    private int collectTweets(int numtweets) throws InterruptedException {
+        int place=places.visit();
+        try {
+            return collectTweets(numtweets, place);
+        } finally {
+            places.done(place);
+        }
+    }
+
+    // collectTweets() from a location held by this collector
+    private int collectTweets(int numtweets, int place) {
+        Location loc=locs[place];
+        Query search=new Query(query.getQuery()); // a Query is changed by every search, so each one gets its own
+        search.setResultType(Query.ResultType.recent);
+        search.setCount(numtweets);
+        search.setGeoCode(loc.getLocation(),RADIUS,Query.KILOMETERS);
+        long sinceId=loc.getSinceId();
+        if (sinceId>0) search.setSinceId(sinceId); // only what was posted since the last visit
+        if (loc.getMaxId()>0) search.setMaxId(loc.getMaxId()); // below what the last visit read, if it stopped short
         int newTweets=0; //how many NEW tweets the twitter gave
+        int returned=-1; // -1 until a search succeeded
+        long maxId=-1, minId=-1; // highest and lowest ids read
+        boolean caughtUp=false; // true once the pages reached the since id
         try {
-            result = twitter.search(query);
-            while(!result.getTweets().isEmpty()) { // store retrieved tweets
-                Status curr=result.getTweets().remove(0);
-                int hashedKey=tweets.hash(new HashThis(curr.getUser().getScreenName()));
-                // Check if there are already saved tweets for this user
-                User tree=tweets.getByHashedKey(hashedKey,new HashThis(curr.getUser().getScreenName()));
-                if (tree==null) { // If not, create a new User
-                    tree=new User();
-                    tree.put(curr.getCreatedAt(),curr);
-                    tweets.putByHashedKey(hashedKey,new HashThis(curr.getUser().getScreenName()),tree);
-                    newTweets++;
-                } else
-                    newTweets+=tree.put(curr.getCreatedAt(), curr);
+            for (int page=1; search!=null; page++) {
+                long start=System.nanoTime();
+                TweetEvents.Search searched=new TweetEvents.Search();
+                searched.begin();
+                SearchResult result=null;
+                try {
+                    result=source.search(search);
+                } finally {
+                    SEARCH.time(start);
+                    searched.end();
+                    if (searched.shouldCommit()) {
+                        searched.location=loc.toString();
+                        searched.page=page;
+                        searched.failed=result==null;
+                        searched.returned=result==null ? 0 : result.getTweets().size();
+                        searched.remaining=result==null ? -1 : result.getRemaining();
+                        searched.commit();
+                    }
+                }
+                if (scheduler!=null) scheduler.succeeded(result);
+                TweetEvents.Insert inserted=new TweetEvents.Insert();
+                inserted.begin();
+                int pageNew=0, pageFiltered=0;
+                for (Tweet curr : result.getTweets()) { // store retrieved tweets
+                    if (!seen.add(curr.getId())) { // probably stored already: skip the lookup of its user
+                        FILTERED.inc();
+                        DUPLICATES.inc();
+                        pageFiltered++;
+                        continue;
+                    }
+                    User user=userOf(curr.getScreenName());
+                    if (user.putNew(curr.getCreatedAt(), curr)==1) {
+                        pageNew++;
+                        INSERTED.inc();
+                        if (user.markDirty()) dirty.add(user);
+                    }
+                    else DUPLICATES.inc();
+                }
+                newTweets+=pageNew;
+                inserted.end();
+                if (inserted.shouldCommit()) {
+                    inserted.tweets=result.getTweets().size();
+                    inserted.inserted=pageNew;
+                    inserted.filtered=pageFiltered;
+                    inserted.users=tweets.size();
+                    inserted.commit();
+                }
+                returned=Math.max(returned, 0)+result.getTweets().size();
+                maxId=Math.max(maxId, result.getMaxId());
+                if (result.getMinId()>=0) minId=minId<0 ? result.getMinId() : Math.min(minId, result.getMinId());
+                // older pages are only worth reading down to the since id of a location visited before
+                search=result.nextQuery();
+                if (sinceId<=0 || search==null) {
+                    caughtUp=true;
+                    search=null;
+                } else if (page>=MAX_PAGES) search=null; // read on from here next time
+                if (search!=null && scheduler!=null) scheduler.acquire();
             }
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         catch (TwitterException te) { // If Twitter raises an error, e.g. because program requested too many tweets at once
-            te.printStackTrace();
-            System.out.println("Failed to search tweets: " + te.getMessage());
-            //timer.schedule(new CollectTweetsFurther(),(long)1000*EXCEPTION_DELAY);
+            long pause=scheduler==null ? 0 : scheduler.failed(te);
+            if (pause>0)
+                System.out.println("Rate limit exceeded, pausing searches for "+pause/1000+" s");
+            else {
+                te.printStackTrace();
+                System.out.println("Failed to search tweets: " + te.getMessage());
+            }
         }
-        System.out.println("\n In total we have "+collected+" Just now we collected "+newTweets+" tweets for location= "+query.getGeocode()+" request= "+query.getQuery()+"\n");
-        
+        if (caughtUp) loc.advanceSinceId(maxId);
+        else if (minId>=0) loc.stoppedAt(minId, maxId); // keeps the since id, so the rest is read later
+        if (returned>=0) places.report(place, returned, newTweets); // a failed search says nothing of the yield
+        checkpoint();
+        sampleChains();
+        System.out.println("\n In total we have "+collected+" Just now we collected "+newTweets+" tweets for location= "+loc+" request= "+query.getQuery()+"\n");
+        return newTweets;
+    }
 
-        counter++;
-        if (counter==SAVE_COUNTER) {
-            counter = 0;
-            save(FILE_NAME);
+    /**
+     * Record the chain lengths of the segments of the table that have grown since they were last
+     * sampled, once they have moved all of their chains to the bigger table. The table itself
+     * records nothing, so inserts don't pay for it; a segment grows O(log n) times.
+     */
+    private static synchronized void sampleChains() {
+        for (int i=0;i<tweets.segments();i++) {
+            if (tweets.capacity(i)==sampledCapacity[i]) continue;
+            int[] lengths=tweets.chainLengths(i);
+            if (lengths==null) continue; // still moving its chains, sampled after a later visit
+            for (int length:lengths) CHAIN_LENGTH.record(length);
+            sampledCapacity[i]=lengths.length;
+        }
+    }
+
+    /**
+     * Write a delta of the users changed since the last checkpoint: only their new tweets,
+     * grouped by user. It is appended to the log in the background, and the log's compaction
+     * merges it into FILE_NAME.
+     * @return the number of tweets in the delta
+     */
+    private static int checkpoint() {
+        ArrayList<Tweet> delta=new ArrayList<Tweet>();
+        int users=0;
+        for (User user=dirty.poll(); user!=null; user=dirty.poll()) {
+            delta.addAll(user.takeUnsaved());
+            users++;
+        }
+        try { // written in the background, only waits if the disk falls behind
+            checkpoints.submit(delta);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Checkpointed "+delta.size()+" new tweets of "+users+" changed users");
+        return delta.size();
+    }
+
+    /**
+     * Find the User of a screen name, creating it if there are no saved tweets for this user yet.
+     * Safe to call from several threads: a user is only ever created once.
+     * @param screenName screen name of the user
+     * @return the User stored in the table
+     */
+    private static User userOf(String screenName) {
+        HashThis key=new HashThis(screenName);
+        User user=tweets.get(key);
+        if (user==null) {
+            User created=new User(screenName);
+            user=tweets.putIfAbsent(key, created);
+            if (user==null) user=created;
+        }
+        return user;
+    }
+
+    /**
+     * Checkpoint the last changes, write the checkpoints still queued and close the log,
+     * compacting what is left of it into FILE_NAME
+     */
+    private static void closeCheckpoints() {
+        checkpoint();
+        try {
+            checkpoints.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return newTweets;
     }
 
     /**
-     * Save all tweets to a file.  Saves all Status data
-     * as serialized objects.
-     * @param filename Name of output file.  Will append
-     * all unique tweets to any file of same name.
+     * Read the id filter saved with FILE_NAME if it still matches the tweets loaded and has
+     * room for the tweets to collect; otherwise build a new one from the tweets loaded.
+     * @param expected number of tweets the filter should hold by the end of collection
+     * @return the filter
+     */
+    private static BloomFilter openFilter(long expected) {
+        String filename=FILE_NAME+".ids";
+        if (new File(filename).exists()) {
+            try {
+                BloomFilter filter=BloomFilter.load(filename);
+                if (filter.stored()==collected.get() && filter.expected()>=expected)
+                    return filter;
+                System.out.println("Id filter "+filename+" is out of date, rebuilding it");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        BloomFilter filter=new BloomFilter(Math.max(2*expected, 1<<20), ID_FPP); // room to grow over later runs
+        for (User j:tweets)
+            synchronized (j) {
+                Timeline timeline=j.timeline();
+                for (int k=0; k<timeline.size(); k++)
+                    filter.add(timeline.body(k).getId());
+            }
+        return filter;
+    }
+
+    /**
+     * Save the id filter next to FILE_NAME, with the number of tweets stored, so the next
+     * run can use it without rebuilding it. Only called once the collectors have stopped
+     * and the log is closed, so it holds no id of a tweet that was not saved.
+     */
+    private static void saveFilter() {
+        try {
+            seen.save(FILE_NAME+".ids", collected.get());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Save a full copy of all tweets to a file.  Saves the fields kept
+     * in each Tweet as a TweetArchive. Collection goes on meanwhile;
+     * the log already keeps FILE_NAME up to date, so this is only needed for a copy.
+     * @param filename Name of output file.  Replaces
+     * any file of same name.
      */
     public static void save(String filename) {
         try {
-            FileOutputStream fos= new FileOutputStream(filename);
-            ObjectOutputStream str = new ObjectOutputStream(fos);
+            long start = System.nanoTime();
+            TweetEvents.Save event = new TweetEvents.Save();
+            event.begin();
+            int users = 0;
+            TweetArchive.Writer str = new TweetArchive.Writer(filename);
 
-            RedBlackBST<Date,Status> tree;
-            for (SequentialSearchST<HashThis,User> i:tweets)
-                if (i!=null)
-                    for (User j:i) {
-                        if (j!=null) {
-                            tree = j.get();
-                            for (Status k : tree)
-                                if (k!=null)
-                                    str.writeObject(k);
-                        }
-                    }
-            System.exit(0);
+            Timeline timeline;
+            for (User j:tweets) // a copy taken a segment at a time, so the collector can keep adding users
+                synchronized (j) { // and tweets to the other users meanwhile
+                    users++;
+                    timeline = j.timeline();
+                    for (int k = 0; k < timeline.size(); k++)
+                        str.add(timeline.body(k));
+                }
+            str.close();
+            Metrics.gauge("tweets_save_seconds", "time of the last full save").set((System.nanoTime() - start) / 1e9);
+            Metrics.gauge("tweets_save_bytes", "size of the last full save").set(str.bytes());
+            event.end();
+            if (event.shouldCommit()) {
+                event.file = filename;
+                event.users = users;
+                event.tweets = str.written();
+                event.bytes = str.bytes();
+                event.commit();
+            }
         } catch (FileNotFoundException e) {
             System.out.println("file not found");
         }  catch (IOException e) {
@@ -191,68 +420,92 @@ public class GatherTweets {
 		return locations;
 	}
 
-    /** loads tweets
-     *@param filename a file to read from
+    /** loads tweets: the shards of the archive if it was split, on one thread per core,
+     * then the archive and the log segments not compacted into it yet
+     *@param filename an archive to read from
      */
     private static void load(String filename) throws IOException, FileNotFoundException {
-
-        ObjectInputStream objInput = null;
-        FileInputStream fileInput = null;
-
+        long start = System.nanoTime();
+        TweetEvents.Load event = new TweetEvents.Load();
+        event.begin();
         try {
-
-            fileInput = new FileInputStream(filename);
-            objInput = new ObjectInputStream(fileInput);
-
-            while(true) { // Will loop until it reaches the end of the file, then will break with EOFException
-                Status curr= (Status)objInput.readObject();
-                int hashedKey=tweets.hash(new HashThis(curr.getUser().getScreenName()));
-                // Check if there are already saved tweets for this user
-                User tree=tweets.getByHashedKey(hashedKey, new HashThis(curr.getUser().getScreenName()));
-                if (tree==null) { // If not, create new User
-                    tree=new User();
-                    tree.put(curr.getCreatedAt(),curr);
-                    tweets.putByHashedKey(hashedKey,new HashThis(curr.getUser().getScreenName()),tree);
-                    GatherTweets.collected++;
-
-                } else GatherTweets.collected+=tree.put(curr.getCreatedAt(), curr); // Otherwise, add to this User's tree
-            }
-        } catch (EOFException ignored) {
-        // Expected EOFException breaks the while loop
+            // shards match the segments of the table, so the threads don't wait for each other's locks
+            long n = ShardedArchive.load(filename, true, Runtime.getRuntime().availableProcessors(), shard -> curr ->
+                userOf(curr.getScreenName()).put(curr.getCreatedAt(), curr));
+            for (User user : tweets) // counted once the threads are done
+                GatherTweets.collected.addAndGet(user.size());
+            n += TweetLog.replay(filename, true, curr ->
+                GatherTweets.collected.addAndGet(userOf(curr.getScreenName()).put(curr.getCreatedAt(), curr)));
+            if (n == 0) // Nothing collected yet
+                System.out.println("No tweets in " + filename + ", starting empty");
 
         } catch (Exception e) {
-            // Unexpected exception, e.g. ClassNotFoundException
+            // Unexpected exception, e.g. a corrupt archive
             e.printStackTrace();
 
-        } finally { // Close the file stream objects
-            if(objInput != null){
-                try {
-                    objInput.close();
-                } catch (Exception ex){
-                    ex.printStackTrace();
-                }
-            }
-            if (fileInput != null){
-                try {
-                    fileInput.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-            System.out.println("Closed files");
         }
+        Metrics.gauge("tweets_load_seconds", "time to load the stored tweets").set((System.nanoTime() - start) / 1e9);
+        long bytes = TweetLog.size(filename);
+        for (int k = 0, shards = ShardedArchive.shards(filename); k < shards; k++)
+            bytes += new File(ShardedArchive.shardName(filename, k, shards)).length();
+        Metrics.gauge("tweets_load_bytes", "size of the archive, shards and log loaded").set(bytes);
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.users = tweets.size();
+            event.tweets = collected.get();
+            event.bytes = bytes;
+            event.commit();
+        }
+        System.out.println("Closed files");
     }
 
     /**
      * Usage: java twitter4j.examples.search.GatherTweets [query]
+     *        java GatherTweets -replay alltweets.arc 1000000 0 10000000 query   (load test from an archive)
+     *        java GatherTweets -threads 16 minPopulation totalTweets query      (16 searches at the same time)
+     *        java GatherTweets -replay alltweets.arc 0 -quota 180 900 0 1000000 query (replay with a simulated quota)
+     *        java GatherTweets -synthetic 1000000 100000000 0 0 100000000 query   (soak test with generated tweets)
+     *        java GatherTweets -metrics 9404 0 1000000 query  (metrics at http://localhost:9404/metrics too)
+     * Metrics are written to METRICS_FILE every METRICS_SECONDS.
      *
      * @param args
      */
     public static void main(String[] args) throws Exception{
+        TweetSource source=null;
+        SearchScheduler scheduler=new SearchScheduler(SEARCHES_PER_WINDOW, RATE_WINDOW);
+        int threads=COLLECTORS;
+        while (args.length>=2 && args[0].startsWith("-")) {
+            if (args[0].equals("-replay") && args.length>=3) { // load test: serve an archive instead of searching Twitter
+                source=new ReplaySource(args[1], Double.parseDouble(args[2]), false);
+                scheduler=null; // the replay keeps its own pace
+                args=Arrays.copyOfRange(args, 3, args.length);
+            } else if (args[0].equals("-synthetic") && args.length>=4) { // soak test: serve generated tweets
+                int users=Integer.parseInt(args[1]);
+                long total=Long.parseLong(args[2]);
+                source=new ReplaySource(new SyntheticTweets(users, total, 30, SyntheticTweets.SEED), "synthetic tweets", Double.parseDouble(args[3]));
+                scheduler=null;
+                args=Arrays.copyOfRange(args, 4, args.length);
+            } else if (args[0].equals("-quota") && args.length>=3 && source instanceof ReplaySource) { // simulate the search quota
+                int searches=Integer.parseInt(args[1]), seconds=Integer.parseInt(args[2]);
+                ((ReplaySource)source).simulateQuota(searches, seconds);
+                scheduler=new SearchScheduler(searches, seconds);
+                args=Arrays.copyOfRange(args, 3, args.length);
+            } else if (args[0].equals("-metrics")) { // also serve the metrics on a local port
+                Metrics.serve(Integer.parseInt(args[1]));
+                args=Arrays.copyOfRange(args, 2, args.length);
+            } else if (args[0].equals("-threads")) {
+                threads=Integer.parseInt(args[1]);
+                args=Arrays.copyOfRange(args, 2, args.length);
+            } else break;
+        }
         if (args.length < 2) {
-            System.out.println("Usage: java GatherTweets minPopulation totalTweets queryString");
+            System.out.println("Usage: java GatherTweets [-replay archive tweetsPerMinute | -synthetic users tweets tweetsPerMinute]");
+            System.out.println("                         [-quota searches seconds] [-threads n] [-metrics port] minPopulation totalTweets queryString");
+            Metrics.close();
             System.exit(-1);
         }
+        if (source==null) source=new TwitterSource();
 
 
         ArrayList<Location> locations = loadLocations("us-cities.txt");
@@ -267,16 +520,35 @@ public class GatherTweets {
                 eligibleLocations[--count] = i;
             }
         }
-        HashThis.setM(Integer.parseInt(args[1]));
-        GatherTweets.tweets=new SeparateChainingHashST(Integer.parseInt(args[1])); //although toCollect is the number of tweets and not the users
+        GatherTweets.tweets=new StripedHashST<>(Math.max(ShardedArchive.shards(FILE_NAME), ShardedArchive.DEFAULT_SHARDS),
+                Integer.parseInt(args[1])); //although toCollect is the number of tweets and not the users
         // it makes sense to make the table greater than needed
-        load("alltweets.dat");
+        load(FILE_NAME);
+        sampledCapacity=new int[tweets.segments()];
+        seen=openFilter(collected.get()+Integer.parseInt(args[1]));
+        System.out.println("Id filter: "+seen);
+        Metrics.gauge("tweets_stored", "tweets stored, loaded and collected", collected::get);
+        Metrics.gauge("tweets_users", "users with stored tweets", () -> tweets.size());
+        Metrics.gauge("tweets_duplicate_ratio", "fraction of the tweets returned by searches that were duplicates", () -> {
+            long duplicates=DUPLICATES.get(), all=duplicates+INSERTED.get();
+            return all==0 ? 0 : (double) duplicates/all;
+        });
+        Metrics.gauge("tweets_id_filter_fpp", "estimated false-positive rate of the id filter", () -> seen.fpp());
+        Metrics.gauge("tweets_id_filter_bytes", "memory of the id filter", () -> seen.bytes());
+        Metrics.dumpEvery(METRICS_FILE, METRICS_SECONDS);
+        checkpoints=new CheckpointWriter(new TweetLog(FILE_NAME));
         String q="";
         for (int i=2;i<args.length;i++)
             q+=args[i]+" ";
-        GatherTweets gt=new GatherTweets(new Query(q),Integer.parseInt(args[1]),eligibleLocations);
+        GatherTweets gt=new GatherTweets(new Query(q),Integer.parseInt(args[1]),eligibleLocations,source,scheduler,threads);
+        Metrics.gauge("tweets_inserted_per_second", "new tweets stored per second since collection started", () -> {
+            double seconds=(System.currentTimeMillis()-gt.started)/1000.0;
+            return seconds==0 ? 0 : INSERTED.get()/seconds;
+        });
+        Metrics.gauge("tweets_checkpoint_pending", "checkpoints waiting to be written", () -> checkpoints.pending());
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {public void run() {
-            gt.save("alltweets2.dat");
+            closeCheckpoints();
+            Metrics.close();
         }}));
 	}
 
@@ -4,42 +4,102 @@
  */
 public class HashThis {
     private String str;
-    public static final int R=31;  // hash multiplier
-    public static int m=1000;      // initial table size
+    private int hash;              // cached hash, 0 until computed
 
     /**
      * Create new HashThis instance
      * @param str
      */
-    public HashThis(String str) { 
+    public HashThis(String str) {
         this.str = str;
     }
     /**
      * Public hashcode method for use outside this class
-     * Takes string input and returns hash 
+     * Takes string input and returns a full 32-bit hash of every character,
+     * computed once per instance. The string hash is run through the murmur3
+     * finalizer so that every bit depends on every character, which lets
+     * tables reduce it by masking off the low bits.
      * @return int
      */
     @Override
     public int hashCode() {
+        int h = hash;
+        if (h == 0) { // a single int write, so threads racing here at worst compute it twice
+            h = str.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * The hash used before hashCode was mixed: a per-character modulo by the
+     * table size that skips non-ASCII characters. Kept for comparison only.
+     * @param str string to hash
+     * @param m table size
+     * @return hash between 0 and m-1
+     */
+    static int legacyHash(String str, int m) {
         int hash = 0;
-        for (int i = 0; i < str.length(); i += 1){ // Start at index 1 to exclude the '@' symbol
+        for (int i = 0; i < str.length(); i += 1){
             if ( (int)(str.charAt(i)) > 127) { continue; } // Exclude non-basic ASCII characters
-            hash = ((hash * R) + str.charAt(i)) % m;
+            hash = ((hash * 31) + str.charAt(i)) % m;
         }
         return hash;
     }
-    
-    /**
-    * Only to be used if the table is not currently being hashed into
-    * For use within gatherTweets, to reset table size from m to newM, as needed
-    *@param newM value for hash table size
-    */
-    public static void setM(int newM) {  
-        m=newM;
-    }
 
     public boolean equals(Object obj) {
         if (obj==null) return false;
         return this.str.equals(((HashThis)obj).str);
     }
+
+    // print how many chains of each length the given chain of every key makes
+    private static void printChains(String label, int[] chainOf, int m) {
+        int[] lengths = new int[m];
+        for (int c : chainOf) lengths[c]++;
+        int max = 0;
+        int[] histogram = new int[10];
+        for (int length : lengths) {
+            max = Math.max(max, length);
+            histogram[Math.min(length, histogram.length - 1)]++;
+        }
+        StringBuilder line = new StringBuilder(label + ": max " + max + ", chains by length");
+        for (int length = 0; length < histogram.length; length++)
+            line.append(length == histogram.length - 1 ? " " + length + "+:" : " " + length + ":").append(histogram[length]);
+        System.out.println(line);
+    }
+
+    /**
+     * Reports the chain-length distribution of the screen names in an archive,
+     * for the old per-character modulo hash and for hashCode with a power-of-two mask.
+     * Usage: java HashThis [alltweets.arc] [chains]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        String filename = args.length > 0 ? args[0] : "alltweets.arc";
+        SeparateChainingHashST<String, Boolean> distinct = new SeparateChainingHashST<>();
+        TweetArchive.Reader archive = new TweetArchive.Reader(filename, false);
+        try {
+            while (archive.hasNext()) distinct.put(archive.next().getScreenName(), true);
+        } finally {
+            archive.close();
+        }
+        String[] names = new String[distinct.size()];
+        int k = 0;
+        for (String name : distinct.keys()) names[k++] = name;
+
+        int m = args.length > 1 ? Integer.parseInt(args[1]) : Integer.highestOneBit(Math.max(names.length, 1));
+        System.out.println(names.length + " screen names in " + m + " chains");
+        int[] chainOf = new int[names.length];
+        for (int i = 0; i < names.length; i++) chainOf[i] = legacyHash(names[i], m);
+        printChains("legacy % m", chainOf, m);
+        int pow2 = Integer.highestOneBit(m);
+        for (int i = 0; i < names.length; i++) chainOf[i] = new HashThis(names[i]).hashCode() & (pow2 - 1);
+        printChains("mixed & " + (pow2 - 1), chainOf, pow2);
+    }
 }
@@ -0,0 +1,331 @@
+/******************************************************************************
+ *  Compilation:  javac LinearProbingHashST.java
+ *  Execution:    java LinearProbingHashST [users ...]
+ *  Dependencies: HashThis.java SeparateChainingHashST.java
+ *
+ *  A symbol table implemented with a linear-probing hash table.
+ *  Same getByHashedKey/putByHashedKey API as SeparateChainingHashST.
+ *
+ ******************************************************************************/
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+
+/**
+ *  The {@code LinearProbingHashST} class represents a symbol table of generic
+ *  key-value pairs.
+ *  It supports the usual <em>put</em>, <em>get</em>, <em>contains</em>,
+ *  <em>delete</em>, <em>size</em>, and <em>is-empty</em> methods.
+ *  It also provides a <em>keys</em> method for iterating over all of the keys,
+ *  and iterates over all of the values.
+ *  Values cannot be {@code null}—setting the value associated with a key to
+ *  {@code null} is equivalent to deleting the key from the symbol table.
+ *  <p>
+ *  This implementation uses open addressing with linear probing over parallel
+ *  arrays: the full hash of every key is kept in an {@code int[]}, so a probe
+ *  compares ints in one contiguous array and only calls {@code equals()} when
+ *  the hashes match, and a resize never calls {@code hashCode()} again.
+ *  The table size is a power of two and doubles when it is more than
+ *  {@code MAX_LOAD} full, so the reduction of a hash to a slot is a mask.
+ *  <p>
+ *  Unlike {@link SeparateChainingHashST}, {@code hash()} returns the full hash of
+ *  the key rather than a slot, so a hash computed before a resize stays valid after it.
+ */
+public class LinearProbingHashST<Key, Value> implements Iterable<Value> {
+    private static final int INIT_CAPACITY = 4;
+    private static final double MAX_LOAD = 0.75;  // resize once more than this fraction of slots is used
+
+    private int n;           // number of key-value pairs
+    private int m;           // number of slots, a power of 2
+    private int[] hashes;    // full hash of the key in each slot
+    private Key[] keys;      // null for an empty slot
+    private Value[] vals;
+
+    /**
+     * Initializes an empty symbol table.
+     */
+    public LinearProbingHashST() {
+        this(INIT_CAPACITY);
+    }
+
+    /**
+     * Initializes an empty symbol table that can hold {@code capacity} keys without resizing.
+     * @param capacity the expected number of keys
+     */
+    @SuppressWarnings("unchecked")
+    public LinearProbingHashST(int capacity) {
+        m = INIT_CAPACITY;
+        while (m * MAX_LOAD < capacity) m *= 2;
+        hashes = new int[m];
+        keys = (Key[]) new Object[m];
+        vals = (Value[]) new Object[m];
+    }
+
+    /**
+     * Returns the hash of {@code key}, to be passed to getByHashedKey and putByHashedKey.
+     * hashCode() is run through the murmur3 finalizer: linear probing needs every bit
+     * of the low bits kept by the mask to depend on the whole key, or clusters form.
+     * @param key the key
+     * @return the hash of the key
+     */
+    public int hash(Key key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Returns the number of key-value pairs in this symbol table.
+     * @return the number of key-value pairs in this symbol table
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Returns the number of slots of the hash table
+     * @return the number of slots
+     */
+    public int currentMaxSize() {
+        return m;
+    }
+
+    /**
+     * Returns true if this symbol table is empty.
+     * @return {@code true} if this symbol table is empty; {@code false} otherwise
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns true if this symbol table contains the specified key.
+     * @param  key the key
+     * @return {@code true} if this symbol table contains {@code key}; {@code false} otherwise
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public boolean contains(Key key) {
+        if (key == null) throw new IllegalArgumentException("argument to contains() is null");
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value associated with the specified key in this symbol table.
+     * @param  key the key
+     * @return the value associated with {@code key}; {@code null} if no such value
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public Value get(Key key) {
+        if (key == null) throw new IllegalArgumentException("argument to get() is null");
+        return getByHashedKey(hash(key), key);
+    }
+
+    /**
+     * Returns the value associated with the specified key, given the hash of the key.
+     * @param  hashedKey - hash of the key, as returned by hash()
+     * @param  key - the key
+     * @return the value associated with {@code key}; {@code null} if no such value
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public Value getByHashedKey(int hashedKey, Key key) {
+        if (key == null) throw new IllegalArgumentException("argument to get() is null");
+        int i = slot(hashedKey, key);
+        return keys[i] == null ? null : vals[i];
+    }
+
+    /**
+     * Inserts the specified key-value pair into the symbol table, overwriting the old
+     * value with the new value if the symbol table already contains the specified key.
+     * Deletes the specified key (and its associated value) from this symbol table
+     * if the specified value is {@code null}.
+     * @param  key the key
+     * @param  val the value
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public void put(Key key, Value val) {
+        if (key == null) throw new IllegalArgumentException("first argument to put() is null");
+        putByHashedKey(hash(key), key, val);
+    }
+
+    /**
+     * Inserts the specified key-value pair, given the hash of the key.
+     * @param hashedKey hash of the key, as returned by hash()
+     * @param  key the key
+     * @param  val the value
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public void putByHashedKey(int hashedKey, Key key, Value val) {
+        if (key == null) throw new IllegalArgumentException("first argument to put() is null");
+        if (val == null) {
+            delete(key);
+            return;
+        }
+        int i = slot(hashedKey, key);
+        if (keys[i] != null) {
+            vals[i] = val;
+            return;
+        }
+        if (n + 1 > m * MAX_LOAD) {
+            resize(2*m);
+            i = slot(hashedKey, key);
+        }
+        hashes[i] = hashedKey;
+        keys[i] = key;
+        vals[i] = val;
+        n++;
+    }
+
+    /**
+     * Removes the specified key and its associated value from this symbol table
+     * (if the key is in this symbol table).
+     * @param  key the key
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public void delete(Key key) {
+        if (key == null) throw new IllegalArgumentException("argument to delete() is null");
+        int i = slot(hash(key), key);
+        if (keys[i] == null) return;
+
+        // shift back the rest of the cluster so that no probe sequence is broken
+        int mask = m - 1;
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            // move j into the hole unless its home slot lies cyclically in (hole, j]
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                hashes[hole] = hashes[j];
+                keys[hole] = keys[j];
+                vals[hole] = vals[j];
+                hole = j;
+            }
+        }
+        keys[hole] = null;
+        vals[hole] = null;
+        n--;
+    }
+
+    // slot holding key, or the empty slot where it would go
+    private int slot(int hashedKey, Key key) {
+        int mask = m - 1;
+        int i = hashedKey & mask;
+        while (keys[i] != null) {
+            if (hashes[i] == hashedKey && key.equals(keys[i])) return i;
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    // move every key to a table with the given number of slots, reusing the stored hashes
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        int[] oldHashes = hashes;
+        Key[] oldKeys = keys;
+        Value[] oldVals = vals;
+        m = capacity;
+        hashes = new int[m];
+        keys = (Key[]) new Object[m];
+        vals = (Value[]) new Object[m];
+        int mask = m - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) continue;
+            int i = oldHashes[j] & mask;
+            while (keys[i] != null) i = (i + 1) & mask;
+            hashes[i] = oldHashes[j];
+            keys[i] = oldKeys[j];
+            vals[i] = oldVals[j];
+        }
+    }
+
+    // return keys in symbol table as an Iterable
+    public Iterable<Key> keys() {
+        Queue<Key> queue = new LinkedList<Key>();
+        for (int i = 0; i < m; i++)
+            if (keys[i] != null) queue.add(keys[i]);
+        return queue;
+    }
+
+    /**
+     * Iterates over all of the values, in slot order
+     */
+    public Iterator<Value> iterator() {
+        return new SlotIterator();
+    }
+    private class SlotIterator implements Iterator<Value> {
+        private int current = advance(0);
+
+        private int advance(int i) {
+            while (i < m && keys[i] == null) i++;
+            return i;
+        }
+
+        public boolean hasNext() {
+            return current < m;
+        }
+
+        public void remove() throws UnsupportedOperationException {
+            throw new UnsupportedOperationException("remove is not implemented");
+        }
+
+        public Value next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Value val = vals[current];
+            current = advance(current + 1);
+            return val;
+        }
+    }
+
+    /**
+     * Compares putByHashedKey/getByHashedKey on this table and on SeparateChainingHashST,
+     * the way GatherTweets uses them: one hash(), then a get, then a put on a miss.
+     * The keys are HashThis screen names, as GatherTweets uses them.
+     * Usage: java -Xmx16g LinearProbingHashST 1000000 10000000 50000000
+     *
+     * @param args the numbers of users to try
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) args = new String[] { "1000000" };
+        for (String arg : args) {
+            int users = Integer.parseInt(arg);
+            HashThis[] names = new HashThis[users];
+            for (int i = 0; i < users; i++) names[i] = new HashThis("user" + Integer.toHexString(i * 0x9E3779B9));
+
+            for (int round = 0; round < 3; round++) {
+                System.gc(); // don't charge one table for collecting the other's garbage
+                SeparateChainingHashST<HashThis, Integer> chains = new SeparateChainingHashST<>(users);
+                long start = System.nanoTime();
+                for (int i = 0; i < users; i++) {
+                    int h = chains.hash(names[i]);
+                    if (chains.getByHashedKey(h, names[i]) == null) chains.putByHashedKey(h, names[i], i);
+                }
+                long chainsPut = System.nanoTime() - start;
+                start = System.nanoTime();
+                long check = 0;
+                for (int i = 0; i < users; i++) check += chains.getByHashedKey(chains.hash(names[i]), names[i]);
+                long chainsGet = System.nanoTime() - start;
+                chains = null;
+
+                System.gc();
+                LinearProbingHashST<HashThis, Integer> probing = new LinearProbingHashST<>(users);
+                start = System.nanoTime();
+                for (int i = 0; i < users; i++) {
+                    int h = probing.hash(names[i]);
+                    if (probing.getByHashedKey(h, names[i]) == null) probing.putByHashedKey(h, names[i], i);
+                }
+                long probingPut = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (int i = 0; i < users; i++) check -= probing.getByHashedKey(probing.hash(names[i]), names[i]);
+                long probingGet = System.nanoTime() - start;
+
+                System.out.printf("%,d users: chaining put %.0f ns get %.0f ns, linear probing put %.0f ns get %.0f ns%s%n",
+                        users, (double) chainsPut / users, (double) chainsGet / users,
+                        (double) probingPut / users, (double) probingGet / users, check == 0 ? "" : " MISMATCH");
+            }
+        }
+    }
+}
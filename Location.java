@@ -11,6 +11,9 @@ public class Location {
 	private double latitude;
 	private double longitude;
 	private long population;
+	private long sinceId = -1; // highest tweet id collected from here with none missed below it; -1 if none yet
+	private long maxId = -1;   // highest id still to read below a visit that stopped short of sinceId; -1 if none
+	private long topId = -1;   // highest id collected since sinceId while maxId is set
 	
 	public Location(String city, String state, double latitude, double longitude, long pop) {
 		this.city = city;
@@ -90,6 +93,45 @@ public class Location {
 		this.population = population;
 	}
 	
+	/**
+	 * @return the highest id of a tweet collected from this location, to search only newer ones; -1 if none
+	 */
+	public synchronized long getSinceId() {
+		return sinceId;
+	}
+
+	/**
+	 * @return the highest id to search for when a visit stopped before reading down to the
+	 * since id, so the next one reads on from there; -1 if none
+	 */
+	public synchronized long getMaxId() {
+		return maxId;
+	}
+
+	/**
+	 * Raise the high-water mark of this location once every tweet since it was read;
+	 * a lower id is ignored, so searches finishing out of order never move it back.
+	 * The highest id read by earlier visits that stopped short counts too.
+	 * @param id id of a tweet collected from this location
+	 */
+	public synchronized void advanceSinceId(long id) {
+		sinceId = Math.max(sinceId, Math.max(topId, id));
+		maxId = -1;
+		topId = -1;
+	}
+
+	/**
+	 * Record a visit that read the newest tweets down to some id but not down to the since
+	 * id. The since id stays where it is, so that the tweets in between are not skipped:
+	 * the next visit reads on below the lowest id read.
+	 * @param lowestId lowest id of the tweets read
+	 * @param highestId highest id of the tweets read
+	 */
+	public synchronized void stoppedAt(long lowestId, long highestId) {
+		maxId = lowestId - 1;
+		topId = Math.max(topId, highestId);
+	}
+
 	public GeoLocation getLocation() {
 		return new GeoLocation(latitude,longitude);
 	}
@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Picks the location of the next search, at random in proportion to population times
+ * yield, in O(1) per pick with an alias table (Vose's method).
+ * <p>
+ * The yield of a location is an exponentially weighted moving average of the fraction
+ * of new tweets its searches returned: a city whose searches keep returning tweets we
+ * already have is searched less, until it has something new again. A yield never goes
+ * below MIN_YIELD, so every city is still searched now and then.
+ * The table is rebuilt in O(n) every REBUILD_REPORTS reports; picks use the last table
+ * built and never wait for a rebuild.
+ * <p>
+ * A location is visited by one collector at a time: visit() skips the locations being
+ * visited, so that two visits never move the since id and the max id of a location past
+ * each other, and done() hands the location back.
+ */
+public class LocationScheduler {
+    public static final double ALPHA = 0.2;        // weight of the newest search in the yield
+    public static final double MIN_YIELD = 0.05;
+    public static final int REBUILD_REPORTS = 64;
+    public static final int PICKS = 16;            // picks that may find a location being visited before visit() scans for a free one
+
+    private final double[] population;
+    private final double[] yield;      // moving average of the fraction of new tweets per search
+    private int reports;               // since the table was last built
+    private volatile Alias alias;
+    private final AtomicIntegerArray visiting; // 1 while a collector visits the location
+
+    // alias table over a set of weights: pick column i, then keep it with probability prob[i], else take alias[i]
+    private static class Alias {
+        final double[] prob;
+        final int[] alias;
+
+        Alias(double[] weight) {
+            int n = weight.length;
+            prob = new double[n];
+            alias = new int[n];
+            double total = 0;
+            for (double w : weight) total += w;
+            double[] scaled = new double[n];
+            int[] small = new int[n], large = new int[n];
+            int s = 0, l = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weight[i] * n / total;
+                if (scaled[i] < 1) small[s++] = i;
+                else large[l++] = i;
+            }
+            while (s > 0 && l > 0) {
+                int less = small[--s], more = large[--l];
+                prob[less] = scaled[less];
+                alias[less] = more;
+                scaled[more] += scaled[less] - 1;
+                if (scaled[more] < 1) small[s++] = more;
+                else large[l++] = more;
+            }
+            while (l > 0) prob[large[--l]] = 1;
+            while (s > 0) prob[small[--s]] = 1; // only left by rounding errors
+        }
+
+        int pick(ThreadLocalRandom random) {
+            int i = random.nextInt(prob.length);
+            return random.nextDouble() < prob[i] ? i : alias[i];
+        }
+    }
+
+    /**
+     * @param locs locations to search; every one starts with a yield of 1
+     */
+    public LocationScheduler(Location[] locs) {
+        if (locs.length == 0) throw new IllegalArgumentException("no locations to schedule");
+        population = new double[locs.length];
+        yield = new double[locs.length];
+        for (int i = 0; i < locs.length; i++) {
+            population[i] = Math.max(1, locs[i].getPopulation());
+            yield[i] = 1;
+        }
+        alias = new Alias(population);
+        visiting = new AtomicIntegerArray(locs.length);
+    }
+
+    /**
+     * @return the index of the location to search next
+     */
+    public int next() {
+        return alias.pick(ThreadLocalRandom.current());
+    }
+
+    /**
+     * Pick the location to visit next among the ones no other collector is visiting, and
+     * hold it until done() is called. A pick that finds a location being visited is drawn
+     * again; after PICKS of them the first free location is taken, and if every location
+     * is being visited, this waits for one to be done.
+     * @return the index of the location to visit
+     */
+    public int visit() throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int k = 0; k < PICKS; k++) {
+            int i = alias.pick(random);
+            if (visiting.compareAndSet(i, 0, 1)) return i;
+        }
+        synchronized (this) {
+            while (true) {
+                int start = random.nextInt(visiting.length());
+                for (int k = 0; k < visiting.length(); k++) {
+                    int i = (start + k) % visiting.length();
+                    if (visiting.compareAndSet(i, 0, 1)) return i;
+                }
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Hand back a location returned by visit(), for the next collector to visit
+     * @param i index of the location
+     */
+    public void done(int i) {
+        visiting.set(i, 0);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Record how a search of a location went
+     * @param i index of the location
+     * @param returned number of tweets the search returned
+     * @param newTweets number of them that were not stored yet
+     */
+    public synchronized void report(int i, int returned, int newTweets) {
+        double fresh = returned == 0 ? 0 : (double) newTweets / returned;
+        yield[i] = Math.max(MIN_YIELD, (1 - ALPHA) * yield[i] + ALPHA * fresh);
+        if (++reports >= REBUILD_REPORTS) rebuild();
+    }
+
+    /**
+     * @param i index of the location
+     * @return the current yield of the location, between MIN_YIELD and 1
+     */
+    public synchronized double yield(int i) {
+        return yield[i];
+    }
+
+    private void rebuild() {
+        double[] weight = new double[population.length];
+        for (int i = 0; i < weight.length; i++) weight[i] = population[i] * yield[i];
+        alias = new Alias(weight);
+        reports = 0;
+    }
+
+    /**
+     * Unit tests the {@code LocationScheduler}: compares how often the biggest cities are
+     * picked with their share of the population, then makes the biggest one return only
+     * duplicates and shows it being picked less.
+     * Usage: java LocationScheduler [us-cities.txt] [picks]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        ArrayList<Location> list = GatherTweets.loadLocations(args.length > 0 ? args[0] : "us-cities.txt");
+        int picks = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        Location[] locs = list.toArray(new Location[0]);
+        LocationScheduler scheduler = new LocationScheduler(locs);
+        double total = 0;
+        int biggest = 0;
+        for (int i = 0; i < locs.length; i++) {
+            total += locs[i].getPopulation();
+            if (locs[i].getPopulation() > locs[biggest].getPopulation()) biggest = i;
+        }
+
+        int[] count = new int[locs.length];
+        for (int k = 0; k < picks; k++) count[scheduler.next()]++;
+        System.out.printf("%d cities; %s: %.4f of the population, picked %.4f%n", locs.length,
+                locs[biggest].getCity(), locs[biggest].getPopulation() / total, (double) count[biggest] / picks);
+
+        for (int k = 0; k < 20 * REBUILD_REPORTS; k++) { // the biggest city only returns duplicates
+            int i = scheduler.next();
+            scheduler.report(i, 100, i == biggest ? 0 : 90);
+        }
+        count = new int[locs.length];
+        for (int k = 0; k < picks; k++) count[scheduler.next()]++;
+        System.out.printf("after only duplicates from %s: yield %.3f, picked %.4f%n",
+                locs[biggest].getCity(), scheduler.yield(biggest), (double) count[biggest] / picks);
+
+        // more collectors than locations: a location is never visited twice at once
+        LocationScheduler few = new LocationScheduler(java.util.Arrays.copyOf(locs, 3));
+        AtomicIntegerArray inside = new AtomicIntegerArray(3);
+        int[] overlaps = new int[1];
+        Thread[] collectors = new Thread[8];
+        for (int t = 0; t < collectors.length; t++) {
+            collectors[t] = new Thread(() -> {
+                try {
+                    for (int k = 0; k < 20000; k++) {
+                        int i = few.visit();
+                        if (inside.incrementAndGet(i) > 1) synchronized (overlaps) { overlaps[0]++; }
+                        inside.decrementAndGet(i);
+                        few.done(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            collectors[t].start();
+        }
+        for (Thread collector : collectors) {
+            try {
+                collector.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println(collectors.length + " collectors on 3 locations: " + overlaps[0] + " overlapping visits");
+    }
+}
@@ -0,0 +1,397 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of the counters, gauges and latency histograms of collection, persistence
+ * and analysis, written in the Prometheus text format to a file every few seconds
+ * and, optionally, served on a local HTTP port.
+ * <p>
+ * Metrics are registered once, usually in a static field of the class they measure,
+ * and registering a name again returns the metric already registered. Recording is
+ * lock-free: a counter is a LongAdder, a histogram an array of atomic bucket counts.
+ * Histograms are log-linear like HdrHistogram: every power of two is split in SUB_BUCKETS
+ * buckets, so quantiles are within 1/SUB_BUCKETS of the recorded values at any scale,
+ * in a fixed 15 KB. They are written as summaries with the QUANTILES.
+ */
+public class Metrics {
+    public static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final LinkedHashMap<String, Metric> registry = new LinkedHashMap<String, Metric>();
+    private static ScheduledExecutorService dumper; // writes the metrics file; null if not started
+    private static String dumpFile;
+    private static HttpServer server;               // serves /metrics; null if not started
+
+    private Metrics() { }
+
+    // a metric, written under its name
+    private static abstract class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        void write(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type()).append('\n');
+            writeSamples(out);
+        }
+
+        abstract String type();
+
+        abstract void writeSamples(StringBuilder out);
+    }
+
+    /**
+     * A count that only goes up, e.g. of tweets inserted
+     */
+    public static class Counter extends Metric {
+        private final LongAdder count = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void inc() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        String type() {
+            return "counter";
+        }
+
+        void writeSamples(StringBuilder out) {
+            out.append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    /**
+     * A value that goes up and down, either set or read from a function when written
+     */
+    public static class Gauge extends Metric {
+        private volatile double value;
+        private final DoubleSupplier supplier; // null if the value is set
+
+        Gauge(String name, String help, DoubleSupplier supplier) {
+            super(name, help);
+            this.supplier = supplier;
+        }
+
+        public void set(double value) {
+            this.value = value;
+        }
+
+        public double get() {
+            return supplier == null ? value : supplier.getAsDouble();
+        }
+
+        String type() {
+            return "gauge";
+        }
+
+        void writeSamples(StringBuilder out) {
+            out.append(name).append(' ').append(number(get())).append('\n');
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, e.g. latencies in nanos, in log-linear buckets
+     */
+    public static class Histogram extends Metric {
+        public static final int SUB_BITS = 5;
+        public static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final double scale; // unit written per unit recorded, e.g. 1e-9 for nanos written as seconds
+
+        Histogram(String name, String help, double scale) {
+            super(name, help);
+            this.scale = scale;
+        }
+
+        // values below SUB_BUCKETS have a bucket each; above, each power of two has SUB_BUCKETS
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // the middle of the values of a bucket
+        static double middle(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            long low = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return low + ((1L << shift) - 1) / 2.0;
+        }
+
+        /**
+         * @param value value to record; negative values are recorded as 0
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Record the time elapsed since a start
+         * @param startNanos System.nanoTime() at the start
+         */
+        public void time(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * @param q a quantile between 0 and 1
+         * @return the value at that quantile, in the written unit; NaN if nothing was recorded
+         */
+        public double quantile(double q) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) total += counts[i] = buckets.get(i);
+            if (total == 0) return Double.NaN;
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            int i = 0;
+            while ((seen += counts[i]) < rank) i++;
+            return middle(i) * scale;
+        }
+
+        String type() {
+            return "summary";
+        }
+
+        void writeSamples(StringBuilder out) {
+            for (double q : QUANTILES)
+                out.append(name).append("{quantile=\"").append(q).append("\"} ").append(number(quantile(q))).append('\n');
+            out.append(name).append("_sum ").append(number(sum.sum() * scale)).append('\n');
+            out.append(name).append("_count ").append(count()).append('\n');
+        }
+    }
+
+    private static String number(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    // the metric of a name, registered by create if there is none yet
+    private static synchronized <M extends Metric> M register(String name, Class<M> type, java.util.function.Supplier<M> create) {
+        Metric metric = registry.get(name);
+        if (metric == null) {
+            metric = create.get();
+            registry.put(name, metric);
+        }
+        if (!type.isInstance(metric)) throw new IllegalArgumentException(name + " is already a " + metric.type());
+        return type.cast(metric);
+    }
+
+    /**
+     * @param name name of the counter, ending in _total
+     * @param help what it counts
+     * @return the counter of that name
+     */
+    public static Counter counter(String name, String help) {
+        return register(name, Counter.class, () -> new Counter(name, help));
+    }
+
+    /**
+     * @param name name of the gauge
+     * @param help what it measures
+     * @return the gauge of that name, whose value is set
+     */
+    public static Gauge gauge(String name, String help) {
+        return register(name, Gauge.class, () -> new Gauge(name, help, null));
+    }
+
+    /**
+     * @param name name of the gauge
+     * @param help what it measures
+     * @param value gives the value each time the metrics are written
+     * @return the gauge of that name
+     */
+    public static Gauge gauge(String name, String help, DoubleSupplier value) {
+        return register(name, Gauge.class, () -> new Gauge(name, help, value));
+    }
+
+    /**
+     * @param name name of the histogram
+     * @param help what it measures
+     * @return the histogram of that name, of values written as they are recorded, e.g. lengths
+     */
+    public static Histogram histogram(String name, String help) {
+        return register(name, Histogram.class, () -> new Histogram(name, help, 1));
+    }
+
+    /**
+     * @param name name of the histogram, ending in _seconds
+     * @param help what it times
+     * @return the histogram of that name, recording nanos and writing seconds
+     */
+    public static Histogram timer(String name, String help) {
+        return register(name, Histogram.class, () -> new Histogram(name, help, 1e-9));
+    }
+
+    /**
+     * @return every metric in the Prometheus text format
+     */
+    public static String text() {
+        ArrayList<Metric> metrics;
+        synchronized (Metrics.class) {
+            metrics = new ArrayList<Metric>(registry.values());
+        }
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : metrics) metric.write(out);
+        return out.toString();
+    }
+
+    /**
+     * Write every metric to a file, replacing it only once the new copy is complete,
+     * so that a reader never sees half of it
+     * @param filename name of the file
+     */
+    public static void write(String filename) throws IOException {
+        File file = new File(filename).getAbsoluteFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), text().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the metrics to a file every few seconds, on a daemon thread, until close()
+     * @param filename name of the file
+     * @param seconds time between two writes
+     */
+    public static synchronized void dumpEvery(String filename, int seconds) {
+        if (dumper != null) throw new IllegalStateException("metrics are already written to " + dumpFile);
+        dumpFile = filename;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Metrics dumper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> {
+            try {
+                write(filename);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Serve the metrics at http://localhost:port/metrics until close(). Only the
+     * loopback interface is bound, so they are not visible from other machines.
+     * @param port port to listen on
+     */
+    public static synchronized void serve(int port) throws IOException {
+        if (server != null) throw new IllegalStateException("metrics are already served");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stop serving the metrics and writing them periodically, writing the file one last time.
+     * Closing again does nothing.
+     */
+    public static synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+            try {
+                write(dumpFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Unit tests the {@code Metrics}: records known distributions, checks that the quantiles
+     * are within a bucket of the exact ones, times recording from several threads and prints
+     * what is written and served.
+     * Usage: java Metrics [port]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        Histogram uniform = histogram("test_uniform", "values 0 to 999999, once each");
+        for (long v = 0; v < 1000000; v++) uniform.record(v);
+        for (double q : QUANTILES) {
+            double exact = q * 1000000 - 1, error = Math.abs(uniform.quantile(q) - exact) / exact;
+            System.out.printf("quantile %s: %.0f, exact %.0f, error %.4f%s%n", q, uniform.quantile(q), exact, error,
+                    error <= 1.0 / Histogram.SUB_BUCKETS ? "" : " TOO FAR");
+        }
+        for (long v : new long[] {0, 1, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE}) {
+            int b = Histogram.bucket(v);
+            if (b >= (64 - Histogram.SUB_BITS + 1) * Histogram.SUB_BUCKETS || Math.abs(Histogram.middle(b) - v) > v / 32.0 + 0.5)
+                System.out.println("value " + v + " is in bucket " + b + " around " + Histogram.middle(b) + ": WRONG");
+        }
+
+        Counter events = counter("test_events_total", "events recorded by the threads");
+        Histogram latency = timer("test_record_seconds", "time to record one value");
+        int threads = 8, perThread = 1000000;
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    long begin = System.nanoTime();
+                    events.inc();
+                    latency.time(begin);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        System.out.printf("%d events on %d threads in %.1f ms%s%n", events.get(), threads, (System.nanoTime() - start) / 1e6,
+                events.get() == (long) threads * perThread && latency.count() == events.get() ? "" : " MISCOUNTED");
+        gauge("test_constant", "a gauge read when written", () -> Math.PI);
+
+        if (args.length > 0) serve(Integer.parseInt(args[0]));
+        System.out.print(text());
+        close();
+    }
+}
@@ -17,6 +17,9 @@
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *  The {@code BST} class represents an ordered symbol table of generic
@@ -42,7 +45,7 @@ import java.util.*;
  *  <em>maximum</em>, <em>ceiling</em>, and <em>floor</em> operations each take
  *  logarithmic time in the worst case, if the tree becomes unbalanced.
  *  The <em>size</em>, and <em>is-empty</em> operations take constant time.
- *  Construction takes constant time.
+ *  Construction takes constant time, or linear time from keys in ascending order.
  *  <p>
  *  For additional documentation, see <a href="http://algs4.cs.princeton.edu/33balanced">Section 3.3</a> of
  *  <i>Algorithms, 4th Edition</i> by Robert Sedgewick and Kevin Wayne.
@@ -96,6 +99,60 @@ public class RedBlackBST<Key extends Comparable<Key>, Value> implements Iterable
     public RedBlackBST() {
     }
 
+    /**
+     * Initializes a symbol table with the given keys, in linear time instead of the
+     * n log n of putting them one at a time. The tree is built as a 2-3 tree of the
+     * greatest black height n keys allow, with 3-nodes only where 2-nodes cannot hold
+     * all the keys, so it is a valid left-leaning red-black BST on which every other
+     * operation works as usual.
+     * The loaders of this project don't build trees: each User keeps its tweet times in a
+     * Timeline, which is already filled in O(k) from a sorted archive. This constructor is
+     * for code that needs an ordered symbol table of data it already has in order.
+     * @param keys the keys, in strictly ascending order
+     * @param vals the values; vals[i] is the value of keys[i]
+     * @throws IllegalArgumentException if the arrays differ in length, if a key or a value
+     *         is {@code null}, or if the keys are not in strictly ascending order
+     */
+    public RedBlackBST(Key[] keys, Value[] vals) {
+        if (keys.length != vals.length) throw new IllegalArgumentException(keys.length + " keys for " + vals.length + " values");
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null) throw new IllegalArgumentException("key " + i + " is null");
+            if (vals[i] == null) throw new IllegalArgumentException("value " + i + " is null");
+            if (i > 0 && keys[i-1].compareTo(keys[i]) >= 0)
+                throw new IllegalArgumentException("keys are not in ascending order at " + i);
+        }
+        int black = 0; // a tree of black height b holds 2^b - 1 to 3^b - 1 keys
+        while ((2L << black) - 1 <= keys.length) black++;
+        root = build(keys, vals, 0, keys.length, black);
+    }
+
+    // the tree of keys[lo..hi), with the given number of black nodes on every path from its root to a leaf;
+    // hi - lo must be between 2^black - 1 and 3^black - 1
+    private Node build(Key[] keys, Value[] vals, int lo, int hi, int black) {
+        if (black == 0) return null;
+        int n = hi - lo;
+        long most = -1; // most keys under a child, a tree of black height black - 1
+        for (long p = 1, i = 1; i <= black; i++, p *= 3) most = p - 1;
+        if (n - 1 <= 2 * most) { // a 2-node: one black node
+            int mid = lo + (n - 1) / 2;
+            Node x = new Node(keys[mid], vals[mid], BLACK, n);
+            x.left  = build(keys, vals, lo, mid, black - 1);
+            x.right = build(keys, vals, mid + 1, hi, black - 1);
+            return x;
+        }
+        // a 3-node: a black node with a red left child, over three trees of nearly equal size
+        int first = (n - 2) / 3, rest = n - 2 - first;
+        int a = lo + first;       // key of the red node
+        int b = a + 1 + rest / 2; // key of the black node
+        Node red = new Node(keys[a], vals[a], RED, b - lo);
+        red.left  = build(keys, vals, lo, a, black - 1);
+        red.right = build(keys, vals, a + 1, b, black - 1);
+        Node x = new Node(keys[b], vals[b], BLACK, n);
+        x.left  = red;
+        x.right = build(keys, vals, b + 1, hi, black - 1);
+        return x;
+    }
+
    /***************************************************************************
     *  Node helper methods.
     ***************************************************************************/
@@ -765,6 +822,92 @@ public class RedBlackBST<Key extends Comparable<Key>, Value> implements Iterable
         }
     }
 
+    /**
+     * Splits the values into ranges of ranks, so each half is a subtree-sized
+     * part of the in-order sequence and knows exactly how many values it holds.
+     * @return a spliterator over the values in key order
+     */
+    @Override
+    public Spliterator<Value> spliterator() {
+        return new RankSpliterator(0, size());
+    }
+
+    /**
+     * @return a sequential stream of the values in key order
+     */
+    public Stream<Value> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return a parallel stream of the values in key order
+     */
+    public Stream<Value> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    // the values of rank lo to hi-1, in order
+    private class RankSpliterator implements Spliterator<Value> {
+        private int lo, hi;        // ranks lo to hi-1 are left
+        private Stack<Node> nodes; // in-order path to the node of rank lo; null until traversal starts
+
+        RankSpliterator(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        // push the path from the root to the node of rank lo, as TreeIterator does for the minimum
+        private void start() {
+            nodes = new Stack<>();
+            Node x = root;
+            int k = lo;
+            while (x != null) {
+                int t = size(x.left);
+                if (k < t) {
+                    nodes.push(x);
+                    x = x.left;
+                } else if (k > t) {
+                    k -= t + 1;
+                    x = x.right;
+                } else {
+                    nodes.push(x);
+                    break;
+                }
+            }
+        }
+
+        public boolean tryAdvance(Consumer<? super Value> action) {
+            if (lo >= hi) return false;
+            if (nodes == null) start();
+            Node previous = nodes.pop();
+            if (previous.right != null) {
+                nodes.push(previous.right);
+                while (nodes.peek().left != null)
+                    nodes.push(nodes.peek().left);
+            }
+            lo++;
+            action.accept(previous.val);
+            return true;
+        }
+
+        public Spliterator<Value> trySplit() {
+            if (nodes != null) return null; // traversal has started
+            int mid = (lo + hi) >>> 1;
+            if (mid <= lo) return null;
+            RankSpliterator prefix = new RankSpliterator(lo, mid);
+            lo = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return hi - lo;
+        }
+
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL;
+        }
+    }
+
     /**
      * Unit tests the {@code RedBlackBST} data type.
      *
@@ -781,6 +924,41 @@ public class RedBlackBST<Key extends Comparable<Key>, Value> implements Iterable
             System.out.println(s + " " + st.get(s));
         System.out.println();
 	st.showTree();
+
+        // a parallel stream must see every value exactly once and in key order
+        RedBlackBST<Integer, Integer> numbers = new RedBlackBST<Integer, Integer>();
+        for (int i = 0; i < 100000; i++)
+            numbers.put(i, i);
+        long sum = numbers.parallelStream().mapToLong(Integer::longValue).sum();
+        Object[] ordered = numbers.parallelStream().toArray();
+        for (int i = 0; i < ordered.length; i++)
+            if (!ordered[i].equals(i)) throw new IllegalStateException("value " + ordered[i] + " at rank " + i);
+        System.out.println("parallel sum " + sum + ", " + ordered.length + " values in order");
+
+        // a tree built from sorted keys must be a valid red-black BST of every size, and stay one under put and delete
+        for (int n = 0; n <= 1000; n++) {
+            Integer[] keys = new Integer[n];
+            for (int i = 0; i < n; i++) keys[i] = 2 * i;
+            RedBlackBST<Integer, Integer> built = new RedBlackBST<Integer, Integer>(keys, keys);
+            if (built.size() != n || !built.check()) throw new IllegalStateException("bad tree built from " + n + " keys");
+            built.put(n, n);
+            built.delete(0);
+            if (n > 0 && !built.check()) throw new IllegalStateException("bad tree after changing " + n + " built keys");
+        }
+        int n = 1 << 20;
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) keys[i] = i;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            RedBlackBST<Integer, Integer> put = new RedBlackBST<Integer, Integer>();
+            for (Integer key : keys) put.put(key, key);
+            long putNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            RedBlackBST<Integer, Integer> built = new RedBlackBST<Integer, Integer>(keys, keys);
+            long builtNanos = System.nanoTime() - start;
+            System.out.printf("%d sorted keys: put %.1f ms, height %d; built %.1f ms, height %d%n",
+                    n, putNanos / 1e6, put.height(), builtNanos / 1e6, built.height());
+        }
     }
 }
 
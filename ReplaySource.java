@@ -0,0 +1,136 @@
+import twitter4j.Query;
+import twitter4j.TwitterException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Stand-in for the search API that serves the tweets of an archive, recorded or
+ * synthetic, or straight from a SyntheticTweets generator, at a configurable rate. It lets insertion, dedup and checkpointing be
+ * load-tested without the network. The geocode of the query is ignored: searches
+ * return the next tweets of the archive, in the order they were written.
+ * <p>
+ * It can also simulate the quota of the search API: a number of searches per fixed
+ * window, reported with every result, and a rate-limit error (status 429) for
+ * searches beyond it, so that scheduling can be tested offline.
+ */
+public class ReplaySource implements TweetSource {
+    private static final int DEFAULT_COUNT = 100; // tweets per search if the query sets no count
+
+    private final String archive;         // name of the archive, or a description of the tweets
+    private final double tweetsPerMinute; // 0 for as fast as possible
+    private final boolean loop;           // start over at the end of the archive
+    private Iterator<Tweet> in;           // null once every tweet has been served
+    private long served;                  // tweets returned so far
+    private long start;                   // nanoTime of the first search
+    private int quota;                    // searches allowed per window; 0 for no quota
+    private long window;                  // length of a quota window, in nanos
+    private long windowStart;             // nanoTime the current window started
+    private int used;                     // searches made in the current window
+    private int rejected;                 // searches refused for exceeding the quota
+
+    /**
+     * @param archive archive to replay
+     * @param tweetsPerMinute rate at which tweets are served; 0 for as fast as they can be read
+     * @param loop if true, start over at the end of the archive, so the same tweets come again
+     */
+    public ReplaySource(String archive, double tweetsPerMinute, boolean loop) throws IOException {
+        this.archive = archive;
+        this.tweetsPerMinute = tweetsPerMinute;
+        this.loop = loop;
+        in = new TweetArchive.Reader(archive);
+    }
+
+    /**
+     * @param tweets tweets to serve, e.g. a SyntheticTweets generator; they are served once
+     * @param name what the tweets are, for error messages
+     * @param tweetsPerMinute rate at which tweets are served; 0 for as fast as they come
+     */
+    public ReplaySource(Iterator<Tweet> tweets, String name, double tweetsPerMinute) {
+        this.archive = name;
+        this.tweetsPerMinute = tweetsPerMinute;
+        this.loop = false;
+        in = tweets;
+    }
+
+    /**
+     * Simulate a search quota
+     * @param searches number of searches allowed per window
+     * @param windowSeconds length of a window
+     * @return this source
+     */
+    public synchronized ReplaySource simulateQuota(int searches, int windowSeconds) {
+        quota = searches;
+        window = windowSeconds * 1000000000L;
+        windowStart = System.nanoTime();
+        used = 0;
+        return this;
+    }
+
+    public synchronized SearchResult search(Query query) throws TwitterException {
+        long now = System.nanoTime();
+        if (quota > 0) {
+            if (now - windowStart >= window) { // a new window
+                windowStart += (now - windowStart) / window * window;
+                used = 0;
+            }
+            if (used >= quota) {
+                rejected++;
+                throw new TwitterException("Rate limit exceeded", null, 429);
+            }
+            used++;
+        }
+        if (served == 0) start = now;
+        int count = query.getCount() > 0 ? query.getCount() : DEFAULT_COUNT;
+        ArrayList<Tweet> tweets = new ArrayList<Tweet>(count);
+        try {
+            while (tweets.size() < count && hasMore()) tweets.add(in.next());
+        } catch (UncheckedIOException e) {
+            throw new TwitterException("could not replay " + archive, e.getCause());
+        }
+        served += tweets.size();
+        if (tweetsPerMinute > 0) { // hold the tweets back until they are due
+            long due = start + (long) (served * 60e9 / tweetsPerMinute);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (quota == 0) return new SearchResult(tweets);
+        int reset = (int) Math.max(0, (windowStart + window - System.nanoTime()) / 1000000000L);
+        return new SearchResult(tweets, quota - used, reset);
+    }
+
+    public synchronized boolean hasMore() {
+        if (in == null) return false;
+        if (in.hasNext()) return true;
+        try {
+            if (in instanceof Closeable) ((Closeable) in).close();
+            in = loop ? new TweetArchive.Reader(archive) : null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return in != null && in.hasNext();
+    }
+
+    /**
+     * @return the number of searches refused for exceeding the simulated quota
+     */
+    public synchronized int rejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the number of tweets served so far
+     */
+    public synchronized long served() {
+        return served;
+    }
+}
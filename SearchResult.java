@@ -0,0 +1,94 @@
+import twitter4j.Query;
+
+import java.util.List;
+
+/**
+ * The tweets returned by one search of a TweetSource, with the rate-limit
+ * status the search API sent along with them, if any, and the query of the
+ * next page of older tweets, if there is one.
+ */
+public class SearchResult {
+	private final List<Tweet> tweets;
+	private final int remaining;          // searches left in the current window; -1 if unknown
+	private final int secondsUntilReset;  // until the window resets; -1 if unknown
+	private final Query nextQuery;        // query of the next page; null if this is the last one
+
+	/**
+	 * A result without rate-limit status
+	 * @param tweets the tweets found
+	 */
+	public SearchResult(List<Tweet> tweets) {
+		this(tweets, -1, -1);
+	}
+
+	/**
+	 * @param tweets the tweets found
+	 * @param remaining searches left in the current rate-limit window
+	 * @param secondsUntilReset seconds until the window resets
+	 */
+	public SearchResult(List<Tweet> tweets, int remaining, int secondsUntilReset) {
+		this(tweets, remaining, secondsUntilReset, null);
+	}
+
+	/**
+	 * @param tweets the tweets found
+	 * @param remaining searches left in the current rate-limit window; -1 if unknown
+	 * @param secondsUntilReset seconds until the window resets; -1 if unknown
+	 * @param nextQuery query of the next page of older tweets; null if there is none
+	 */
+	public SearchResult(List<Tweet> tweets, int remaining, int secondsUntilReset, Query nextQuery) {
+		this.tweets = tweets;
+		this.remaining = remaining;
+		this.secondsUntilReset = secondsUntilReset;
+		this.nextQuery = nextQuery;
+	}
+
+	public List<Tweet> getTweets() {
+		return tweets;
+	}
+
+	/**
+	 * @return the query of the next page of older tweets; null if this is the last page
+	 */
+	public Query nextQuery() {
+		return nextQuery;
+	}
+
+	/**
+	 * @return the highest tweet id in this result; -1 if it has no tweets
+	 */
+	public long getMaxId() {
+		long max = -1;
+		for (Tweet tweet : tweets) max = Math.max(max, tweet.getId());
+		return max;
+	}
+
+	/**
+	 * @return the lowest tweet id in this result; -1 if it has no tweets
+	 */
+	public long getMinId() {
+		long min = Long.MAX_VALUE;
+		for (Tweet tweet : tweets) min = Math.min(min, tweet.getId());
+		return tweets.isEmpty() ? -1 : min;
+	}
+
+	/**
+	 * @return true if the source reported its rate-limit status with this result
+	 */
+	public boolean hasRateLimit() {
+		return remaining >= 0 && secondsUntilReset >= 0;
+	}
+
+	public int getRemaining() {
+		return remaining;
+	}
+
+	public int getSecondsUntilReset() {
+		return secondsUntilReset;
+	}
+
+	@Override
+	public String toString() {
+		return tweets.size() + " tweets" + (hasRateLimit() ? ", " + remaining + " searches left for " + secondsUntilReset + " s" : "");
+	}
+}
@@ -0,0 +1,109 @@
+import twitter4j.RateLimitStatus;
+import twitter4j.TwitterException;
+
+/**
+ * Paces the searches of all collectors to use the whole rate-limit window.
+ *
+ * Every result of the search API says how many searches are left and when the window
+ * resets; the scheduler spreads the searches left evenly over the time left, so the
+ * quota is neither exhausted early nor left unused at the reset. Until a status has
+ * been seen, it assumes the documented quota. Only real throttling errors (status 429,
+ * or 420 in older versions of the API) make it back off, exponentially from
+ * BACKOFF_SECONDS and never for less than the API asks; empty results are not errors.
+ * A back-off holds until it is over: a search still in flight when it starts may succeed
+ * after it and change the pace, but no slot is handed out before the back-off ends.
+ */
+public class SearchScheduler {
+    public static final int BACKOFF_SECONDS = 15; // first pause after a throttling error
+
+    private final long window;   // length of a rate-limit window, in nanos
+    private long interval;       // time between two searches, in nanos
+    private long nextSlot;       // nanoTime of the next search
+    private long lastSlot;       // nanoTime of the latest search handed out; no later slot comes before it
+    private long backoffUntil;   // nanoTime the last back-off ends; only failed() moves it, and only later
+    private int throttles;       // throttling errors since the last successful search
+
+    /**
+     * @param searchesPerWindow documented number of searches per window, used until the API reports one
+     * @param windowSeconds length of a window
+     */
+    public SearchScheduler(int searchesPerWindow, int windowSeconds) {
+        if (searchesPerWindow < 1) throw new IllegalArgumentException(searchesPerWindow + " searches per window");
+        window = windowSeconds * 1000000000L;
+        interval = window / searchesPerWindow;
+        nextSlot = System.nanoTime();
+        lastSlot = nextSlot - interval;
+        backoffUntil = nextSlot;
+    }
+
+    /**
+     * Wait for the next search slot. Slots are handed out in order, one interval apart,
+     * to whichever collector asks, and a collector never gets a slot before one handed
+     * out earlier, so searches start in the order they were asked for, whatever the pace.
+     */
+    public void acquire() throws InterruptedException {
+        long slot;
+        synchronized (this) {
+            slot = Math.max(Math.max(nextSlot, backoffUntil), System.nanoTime());
+            nextSlot = slot + interval;
+            lastSlot = slot;
+        }
+        long wait = slot - System.nanoTime();
+        if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+    }
+
+    /**
+     * Adjust the pace to the rate-limit status of a successful search
+     * @param result the result of the search
+     */
+    public synchronized void succeeded(SearchResult result) {
+        throttles = 0;
+        if (!result.hasRateLimit()) return;
+        update(result.getRemaining(), result.getSecondsUntilReset());
+    }
+
+    private void update(int remaining, int secondsUntilReset) {
+        long now = System.nanoTime();
+        long untilReset = (secondsUntilReset + 1) * 1000000000L; // the reset is only known to the second
+        if (remaining <= 0) { // nothing left: wait for the reset, then pace the new window
+            nextSlot = Math.max(nextSlot, now + untilReset);
+            return;
+        }
+        interval = untilReset / remaining;
+        // a faster pace applies at once, but only after the slots already handed out,
+        // so that a collector asking now doesn't jump ahead of the ones waiting,
+        // and never before a back-off ends
+        nextSlot = Math.max(backoffUntil, Math.max(lastSlot + interval, Math.min(nextSlot, now + interval)));
+    }
+
+    /**
+     * Back off after a search failed
+     * @param e the error of the search
+     * @return the pause before the next search, in millis; 0 if the error was not throttling
+     */
+    public synchronized long failed(TwitterException e) {
+        if (!isThrottling(e)) return 0;
+        throttles++;
+        long pause = Math.min(window, BACKOFF_SECONDS * 1000000000L << Math.min(throttles - 1, 20));
+        RateLimitStatus status = e.getRateLimitStatus();
+        if (status != null) pause = Math.max(pause, (status.getSecondsUntilReset() + 1) * 1000000000L);
+        if (e.getRetryAfter() > 0) pause = Math.max(pause, e.getRetryAfter() * 1000000000L);
+        backoffUntil = Math.max(backoffUntil, System.nanoTime() + pause);
+        return pause / 1000000;
+    }
+
+    /**
+     * @return the time between two searches at the current pace, in millis
+     */
+    public synchronized long intervalMillis() {
+        return interval / 1000000;
+    }
+
+    /**
+     * @param e the error of a search
+     * @return true if the API refused the search because the rate limit was exceeded
+     */
+    public static boolean isThrottling(TwitterException e) {
+        return e.exceededRateLimitation() || e.getStatusCode() == 429 || e.getStatusCode() == 420;
+    }
+}
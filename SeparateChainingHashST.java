@@ -12,6 +12,11 @@ import java.io.Serializable;
 import java.util.Iterator;
 import java.util.Queue;
 import java.util.LinkedList;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *  The {@code SeparateChainingHashST} class represents a symbol table of generic
@@ -45,10 +50,15 @@ import java.util.LinkedList;
  */
 public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSearchST<Key,Value>>{
     private static final int INIT_CAPACITY = 4;
+    private static final int REHASH_STEP = 4;     // old chains moved to the new table per insert while resizing
+    private static final Metrics.Counter RESIZES = Metrics.counter("hashst_resizes_total", "resizes of every SeparateChainingHashST");
 
     private int n;                                // number of key-value pairs
-    private int m;                                // hash table size
+    private int m;                                // hash table size, a power of 2
     private SequentialSearchST<Key, Value>[] st;  // array of linked-list symbol tables
+    private SequentialSearchST<Key, Value>[] old; // chains not yet moved by an incremental resize; null if none
+    private int oldM;                             // size of old
+    private int migrated;                         // chains of old before this index have been moved
 
 
     /**
@@ -59,19 +69,33 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
     }
 
     /**
-     * Initializes an empty symbol table with {@code m} chains.
+     * Initializes an empty symbol table with at least {@code m} chains.
+     * The number of chains is rounded up to a power of 2.
      * @param m the initial number of chains
      */
     public SeparateChainingHashST(int m) {
-        this.m = m;
-        st = (SequentialSearchST<Key, Value>[]) new SequentialSearchST[m];
+        this.m = INIT_CAPACITY;
+        while (this.m < m) this.m *= 2;
+        st = chains(this.m);
+    }
+
+    private SequentialSearchST<Key, Value>[] chains(int m) {
+        // no generic array creation; the array never leaves the table, and every chain put in it is a SequentialSearchST<Key, Value>
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        SequentialSearchST<Key, Value>[] chains = (SequentialSearchST<Key, Value>[]) new SequentialSearchST[m];
         for (int i = 0; i < m; i++)
-            st[i] = new SequentialSearchST<Key, Value>();
+            chains[i] = new SequentialSearchST<Key, Value>();
+        return chains;
     }
 
     // resize the hash table to have the given number of chains,
     // rehashing all of the keys
     private void resize(int chains) {
+        RESIZES.inc();
+        TweetEvents.Resize event = new TweetEvents.Resize();
+        event.begin();
+        int from = m;
+        finishResize();
         SeparateChainingHashST<Key, Value> temp = new SeparateChainingHashST<Key, Value>(chains);
         for (int i = 0; i < m; i++) {
             for (Key key : st[i].keys()) {
@@ -81,11 +105,78 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
         this.m  = temp.m;
         this.n  = temp.n;
         this.st = temp.st;
+        commit(event, from, false);
+    }
+
+    // fill in and commit a resize event, if it is recorded
+    private void commit(TweetEvents.Resize event, int from, boolean incremental) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.keys = n;
+            event.from = from;
+            event.to = m;
+            event.incremental = incremental;
+            event.commit();
+        }
     }
 
-     //hash value between 0 and m-1
+    // start an incremental resize: new keys go to a table with the given number of chains,
+    // and every later insert moves REHASH_STEP of the old chains over
+    private void startResize(int chains) {
+        RESIZES.inc();
+        TweetEvents.Resize event = new TweetEvents.Resize();
+        event.begin();
+        old = st;
+        oldM = m;
+        migrated = 0;
+        m = chains;
+        st = chains(m);
+        commit(event, oldM, true);
+    }
+
+    // move up to count old chains to the new table
+    private void migrate(int count) {
+        for (; count > 0 && migrated < oldM; count--, migrated++) {
+            SequentialSearchST<Key, Value> chain = old[migrated];
+            for (Key key : chain.keys())
+                st[index(hash(key), m)].put(key, chain.get(key));
+            old[migrated] = null;
+        }
+        if (migrated == oldM) old = null;
+    }
+
+    /**
+     * Moves every chain left by an incremental resize to the new table,
+     * so that every key is in exactly one of the chains of chain().
+     */
+    public void finishResize() {
+        if (old != null) migrate(oldM);
+    }
+
+    /**
+     * Returns true while an incremental resize is moving chains to the new table.
+     * @return {@code true} if some keys are still in the old table
+     */
+    public boolean isResizing() {
+        return old != null;
+    }
+
+    /**
+     * Returns the hash of the key, to be passed to getByHashedKey and putByHashedKey.
+     * It does not depend on the table size, so it stays valid if the table resizes
+     * between the call to hash() and the call that uses it.
+     * The high bits are folded into the low ones, which are the ones the mask keeps.
+     * @param key the key
+     * @return the hash of the key
+     */
     public int hash(Key key) {
-        return (key.hashCode())%m;
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // chain of a table with m chains that a hash belongs to; m is a power of 2
+    private static int index(int hashedKey, int m) {
+        return hashedKey & (m - 1);
     }
 
     /**
@@ -153,7 +244,15 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
      * @throws IllegalArgumentException if {@code key} is {@code null}
      */
     public Value getByHashedKey(int hashedKey, Key key) {
-        return st[hashedKey].get(key);
+        if (key == null) throw new IllegalArgumentException("argument to get() is null");
+        if (old != null) { // the key may still be in a chain that has not been moved
+            int i = index(hashedKey, oldM);
+            if (i >= migrated) {
+                Value val = old[i].get(key);
+                if (val != null) return val;
+            }
+        }
+        return st[index(hashedKey, m)].get(key);
     }
 
     /**
@@ -167,6 +266,7 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
      * @throws IllegalArgumentException if {@code key} is {@code null}
      */
     public void put(Key key, Value val) {
+        if (key == null) throw new IllegalArgumentException("first argument to put() is null");
         int i = hash(key);
         putByHashedKey(i,key,val);
     }
@@ -176,8 +276,10 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
      * value with the new value if the symbol table already contains the specified key.
      * Deletes the specified key (and its associated value) from this symbol table
      * if the specified value is {@code null}.
+     * When the table grows, its chains are moved to the bigger table a few at a time
+     * by the following inserts, so no single insert pays for rehashing the whole table.
      *
-     * @param hashedValue already hashed key
+     * @param hashedValue hash of the key, as returned by hash()
      * @param  key the key
      * @param  val the value
      * @throws IllegalArgumentException if {@code key} is {@code null}
@@ -190,10 +292,22 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
         }
 
         // double table size if average length of list >= 10
-        if (n >= 10*m) resize(2*m);
+        if (old != null) migrate(REHASH_STEP);
+        else if (n >= 10*m) {
+            startResize(2*m);
+            migrate(REHASH_STEP);
+        }
 
-        if (!st[hashedValue].contains(key)) n++;
-        st[hashedValue].put(key, val);
+        if (old != null) { // update the key in place if its chain has not been moved yet
+            int i = index(hashedValue, oldM);
+            if (i >= migrated && old[i].contains(key)) {
+                old[i].put(key, val);
+                return;
+            }
+        }
+        SequentialSearchST<Key, Value> chain = st[index(hashedValue, m)];
+        if (!chain.contains(key)) n++;
+        chain.put(key, val);
     }
     /**
      * Removes the specified key and its associated value from this symbol table
@@ -204,8 +318,9 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
      */
     public void delete(Key key) {
         if (key == null) throw new IllegalArgumentException("argument to delete() is null");
+        finishResize();
 
-        int i = hash(key);
+        int i = index(hash(key), m);
         if (st[i].contains(key)) n--;
         st[i].delete(key);
 
@@ -213,8 +328,35 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
         if (m > INIT_CAPACITY && n <= 2*m) resize(m/2);
     }
 
+    /**
+     * Performs an action for every value. Unlike the iterator, this does not finish an
+     * incremental resize: the chains not moved yet are read where they are. Nothing is
+     * changed, so several threads can do this at once, as long as none of them inserts.
+     * @param action the action performed on each value
+     */
+    public void forEachValue(Consumer<? super Value> action) {
+        if (old != null)
+            for (int i = migrated; i < oldM; i++)
+                for (Value val : old[i]) action.accept(val);
+        for (int i = 0; i < m; i++)
+            for (Value val : st[i]) action.accept(val);
+    }
+
+    /**
+     * Performs an action on the length of each chain, e.g. to sample how well the keys are
+     * spread. Like forEachValue(), this leaves an incremental resize where it is: the
+     * chains not moved yet are counted too, so the lengths add up to size().
+     * @param action the action performed on each length
+     */
+    public void forEachChainLength(IntConsumer action) {
+        if (old != null)
+            for (int i = migrated; i < oldM; i++) action.accept(old[i].size());
+        for (int i = 0; i < m; i++) action.accept(st[i].size());
+    }
+
     // return keys in symbol table as an Iterable
     public Iterable<Key> keys() {
+        finishResize();
         Queue<Key> queue = new LinkedList<Key>();
         for (int i = 0; i < m; i++) {
             for (Key key : st[i].keys())
@@ -224,14 +366,19 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
     }
 
 
+    /**
+     * Iterates over the chains of the table, finishing any incremental resize first
+     * so that every key is in exactly one of them.
+     */
     public Iterator<SequentialSearchST<Key,Value>> iterator() {
+        finishResize();
         return new TableIterator();
     }
     private class TableIterator implements Iterator<SequentialSearchST<Key,Value>> {
         private int current = 0;
 
         public boolean hasNext() {
-            return current != m-1;
+            return current < m;
         }
 
         public void remove() throws UnsupportedOperationException{
@@ -242,6 +389,118 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
             return st[current++];
         }
     }
+
+    /**
+     * Splits the chains of the table into ranges, e.g. for a parallel stream of chains.
+     * Finishes any incremental resize first.
+     */
+    @Override
+    public Spliterator<SequentialSearchST<Key,Value>> spliterator() {
+        finishResize();
+        return new ChainSpliterator(0, m);
+    }
+    private class ChainSpliterator implements Spliterator<SequentialSearchST<Key,Value>> {
+        private int lo, hi; // chains lo to hi-1 are left
+
+        ChainSpliterator(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public boolean tryAdvance(Consumer<? super SequentialSearchST<Key,Value>> action) {
+            if (lo >= hi) return false;
+            action.accept(st[lo++]);
+            return true;
+        }
+
+        public Spliterator<SequentialSearchST<Key,Value>> trySplit() {
+            int mid = (lo + hi) >>> 1;
+            if (mid <= lo) return null;
+            ChainSpliterator prefix = new ChainSpliterator(lo, mid);
+            lo = mid;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return hi - lo;
+        }
+
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED | NONNULL;
+        }
+    }
+
+    /**
+     * Returns a sequential stream of the values of the table. Finishes any incremental resize first.
+     * @return the values
+     */
+    public Stream<Value> stream() {
+        finishResize();
+        return StreamSupport.stream(new ValueSpliterator(0, m, n), false);
+    }
+
+    /**
+     * Returns a parallel stream of the values of the table. It splits by ranges of chains,
+     * and every split knows exactly how many values it holds. Finishes any incremental
+     * resize first. Nothing may be inserted while the stream runs.
+     * @return the values
+     */
+    public Stream<Value> parallelStream() {
+        finishResize();
+        return StreamSupport.stream(new ValueSpliterator(0, m, n), true);
+    }
+
+    // the values of chains lo to hi-1, in no particular order
+    private class ValueSpliterator implements Spliterator<Value> {
+        private int lo, hi;              // chains lo to hi-1 have not been started
+        private Iterator<Value> current; // rest of the chain being traversed; null if none
+        private long size;               // values left, including the rest of current
+
+        ValueSpliterator(int lo, int hi, long size) {
+            this.lo = lo;
+            this.hi = hi;
+            this.size = size;
+        }
+
+        public boolean tryAdvance(Consumer<? super Value> action) {
+            while (current == null || !current.hasNext()) {
+                if (lo >= hi) return false;
+                current = st[lo++].iterator();
+            }
+            size--;
+            action.accept(current.next());
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super Value> action) {
+            if (current != null)
+                while (current.hasNext()) action.accept(current.next());
+            for (; lo < hi; lo++)
+                for (Value val : st[lo]) action.accept(val);
+            current = null;
+            size = 0;
+        }
+
+        // hands out the second half of the chains that have not been started
+        public Spliterator<Value> trySplit() {
+            int mid = (lo + hi) >>> 1;
+            if (mid <= lo) return null;
+            long suffix = 0;
+            for (int i = mid; i < hi; i++) suffix += st[i].size();
+            ValueSpliterator split = new ValueSpliterator(mid, hi, suffix);
+            hi = mid;
+            size -= suffix;
+            return split;
+        }
+
+        public long estimateSize() {
+            return size;
+        }
+
+        public int characteristics() {
+            return SIZED | SUBSIZED | NONNULL;
+        }
+    }
     /**
      * Unit tests the {@code SeparateChainingHashST} data type.
      *
@@ -259,6 +518,39 @@ public class SeparateChainingHashST<Key, Value> implements Iterable<SequentialSe
         for (String s : st.keys())
             System.out.println(s + " " + st.get(s));
 
+        // grow a small table to a million keys the way GatherTweets does, taking the hash
+        // before each lookup, and check that no key is lost or stored twice
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        SeparateChainingHashST<String, Integer> grown = new SeparateChainingHashST<String, Integer>();
+        java.util.Random random = new java.util.Random(42);
+        int resizing = 0;
+        for (int i = 0; i < 2*keys; i++) {
+            String key = "user" + random.nextInt(keys);
+            int hashedKey = grown.hash(key);
+            Integer count = grown.getByHashedKey(hashedKey, key);
+            grown.putByHashedKey(hashedKey, key, count == null ? 1 : count + 1);
+            if (grown.isResizing()) resizing++;
+        }
+        int total = 0, distinct = 0;
+        for (SequentialSearchST<String, Integer> chain : grown)
+            for (Integer count : chain) {
+                total += count;
+                distinct++;
+            }
+        random = new java.util.Random(42);
+        for (int i = 0; i < 2*keys; i++) {
+            String key = "user" + random.nextInt(keys);
+            if (grown.get(key) == null) throw new IllegalStateException(key + " lost");
+        }
+        if (total != 2*keys || distinct != grown.size())
+            throw new IllegalStateException("counted " + total + " puts of " + distinct + " keys, expected "
+                    + 2*keys + " puts of " + grown.size() + " keys");
+        System.out.println(grown.size() + " keys in " + grown.currentMaxSize() + " chains, "
+                + resizing + " inserts while resizing, all found");
+        long streamed = grown.parallelStream().mapToLong(Integer::longValue).sum();
+        if (streamed != total || grown.parallelStream().count() != grown.size())
+            throw new IllegalStateException("parallel stream saw " + streamed + " puts, expected " + total);
+        System.out.println("parallel stream saw all " + grown.size() + " keys");
     }
 
 }
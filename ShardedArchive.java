@@ -0,0 +1,271 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * An archive split into a power of two number of shards, each a TweetArchive file
+ * named base.K-of-N. The tweets of a user are all in the shard picked by the hash
+ * of the screen name, the same way StripedHashST picks a segment, so shards can be
+ * loaded at the same time by different threads, each into its own part of the table.
+ */
+public class ShardedArchive {
+    public static final int DEFAULT_SHARDS = 16;
+
+    /**
+     * @param screenName screen name of a user
+     * @param shards number of shards, a power of 2
+     * @return the shard holding the tweets of the user, between 0 and shards-1
+     */
+    public static int shardOf(String screenName, int shards) {
+        return StripedHashST.segmentOf(new HashThis(screenName).hashCode(), shards);
+    }
+
+    /**
+     * @param base name of the archive the shards were split from
+     * @param shard index of the shard
+     * @param shards number of shards
+     * @return the file name of the shard
+     */
+    public static String shardName(String base, int shard, int shards) {
+        return base + "." + shard + "-of-" + shards;
+    }
+
+    /**
+     * Finds the shards of an archive on disk
+     * @param base name of the archive the shards were split from
+     * @return the number of shards; 0 if there are none
+     * @throws IOException if some of the shards are missing, or if there are shards
+     *         of more than one split, e.g. into 8 and into 16 shards
+     */
+    public static int shards(String base) throws IOException {
+        File file = new File(base).getAbsoluteFile();
+        String prefix = file.getName() + ".0-of-";
+        String[] names = file.getParentFile().list();
+        if (names == null) return 0;
+        int found = 0;
+        for (String name : names) {
+            if (!name.startsWith(prefix)) continue;
+            int shards;
+            try {
+                shards = Integer.parseInt(name.substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                continue; // e.g. a shard being written by split
+            }
+            if (found != 0)
+                throw new IOException(base + " has shards of two splits, into " + found + " and into " + shards);
+            for (int k = 1; k < shards; k++)
+                if (!new File(shardName(base, k, shards)).exists())
+                    throw new IOException("shard " + shardName(base, k, shards) + " is missing");
+            found = shards;
+        }
+        return found;
+    }
+
+    /**
+     * Split an archive into shards by user. If the base already has shards, they must be as
+     * many, and the tweets of the archive are added to the tweets they hold. Every shard is
+     * written to a new file, base.K-of-N.tmp, and the new files only replace the shards once
+     * all of them are written, so a failure leaves the shards on disk as they were.
+     * If the archive is the base of a TweetLog, it is only read up to the last whole compaction,
+     * as the log would replay it; lock it with TweetLog.lock to keep the compactor off meanwhile.
+     * @param archive archive to split
+     * @param base name the shards are named after
+     * @param shards number of shards, a power of 2
+     * @return the number of tweets of the archive written
+     * @throws IOException if the base already has a different number of shards
+     */
+    public static long split(String archive, String base, int shards) throws IOException {
+        if (Integer.bitCount(shards) != 1) throw new IllegalArgumentException(shards + " shards is not a power of 2");
+        int existing = shards(base);
+        if (existing != 0 && existing != shards)
+            throw new IOException(base + " is already split into " + existing + " shards, not " + shards);
+        TweetArchive.Writer[] out = new TweetArchive.Writer[shards];
+        long n = 0;
+        boolean written = false;
+        try {
+            for (int k = 0; k < shards; k++) out[k] = new TweetArchive.Writer(shardName(base, k, shards) + ".tmp");
+            for (int k = 0; k < existing; k++) { // the tweets already split
+                TweetArchive.Reader in = new TweetArchive.Reader(shardName(base, k, shards));
+                try {
+                    while (in.hasNext()) out[k].add(in.next());
+                } finally {
+                    in.close();
+                }
+            }
+            TweetArchive.Reader in = new TweetArchive.Reader(archive, true, TweetLog.compactedLength(archive));
+            try {
+                while (in.hasNext()) {
+                    Tweet tweet = in.next();
+                    out[shardOf(tweet.getScreenName(), shards)].add(tweet);
+                    n++;
+                }
+            } finally {
+                in.close();
+            }
+            for (int k = 0; k < shards; k++) {
+                out[k].close();
+                out[k] = null;
+            }
+            written = true;
+        } finally {
+            for (int k = 0; k < shards; k++) {
+                if (out[k] != null) out[k].close();
+                if (!written) new File(shardName(base, k, shards) + ".tmp").delete();
+            }
+        }
+        // each new shard holds all of the old one, so readers see every tweet at any point of the renames
+        for (int k = 0; k < shards; k++)
+            Files.move(Paths.get(shardName(base, k, shards) + ".tmp"), Paths.get(shardName(base, k, shards)),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return n;
+    }
+
+    /**
+     * Read every shard of an archive, each on a thread of a pool. All the tweets of a shard
+     * go to the same sink, from a single thread, so a sink only needs to be thread-safe
+     * against the sinks of other shards.
+     * @param base name the shards are named after
+     * @param withText if false, the tweet text is skipped
+     * @param threads number of shards read at the same time
+     * @param sinkOfShard gives the sink of the tweets of each shard
+     * @return the number of tweets read
+     */
+    public static long load(String base, boolean withText, int threads, IntFunction<Consumer<Tweet>> sinkOfShard)
+            throws IOException {
+        int shards = shards(base);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, shards)));
+        try {
+            ArrayList<Future<Long>> loaded = new ArrayList<Future<Long>>();
+            for (int k = 0; k < shards; k++) {
+                String file = shardName(base, k, shards);
+                Consumer<Tweet> sink = sinkOfShard.apply(k);
+                loaded.add(pool.submit(() -> {
+                    long n = 0;
+                    TweetArchive.Reader in = new TweetArchive.Reader(file, withText);
+                    try {
+                        while (in.hasNext()) {
+                            sink.accept(in.next());
+                            n++;
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return n;
+                }));
+            }
+            long n = 0;
+            for (Future<Long> shard : loaded) n += shard.get();
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("loading " + base + " was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("could not load a shard of " + base, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // time loading an archive split by main into a StripedHashST, as one file and as shards on the given threads
+    private static void benchmark(String archive, int threads) throws IOException {
+        int shards = shards(archive);
+        for (int round = 0; round < 3; round++) {
+            System.gc();
+            StripedHashST<HashThis, User> table = new StripedHashST<>(shards, 0);
+            long start = System.nanoTime();
+            TweetArchive.Reader in = new TweetArchive.Reader(archive + ".unsplit", false); // as left by main
+            long n = 0;
+            try {
+                while (in.hasNext()) {
+                    Tweet tweet = in.next();
+                    userOf(table, tweet.getScreenName()).put(tweet.getCreatedAt(), tweet);
+                    n++;
+                }
+            } finally {
+                in.close();
+            }
+            long single = System.nanoTime() - start;
+
+            table = null;
+            System.gc();
+            StripedHashST<HashThis, User> sharded = new StripedHashST<>(shards, 0);
+            start = System.nanoTime();
+            long m = load(archive, false, threads, k -> tweet ->
+                    userOf(sharded, tweet.getScreenName()).put(tweet.getCreatedAt(), tweet));
+            long parallel = System.nanoTime() - start;
+            System.out.printf("%d tweets: one file %.1f ms, %d shards on %d threads %.1f ms%s%n",
+                    n, single / 1e6, shards, threads, parallel / 1e6, n == m ? "" : " MISMATCH");
+        }
+    }
+
+    private static User userOf(StripedHashST<HashThis, User> table, String screenName) {
+        HashThis key = new HashThis(screenName);
+        User user = table.get(key);
+        if (user == null) {
+            User created = new User(screenName, false);
+            user = table.putIfAbsent(key, created);
+            if (user == null) user = created;
+        }
+        return user;
+    }
+
+    /**
+     * Usage: java ShardedArchive alltweets.arc [shards]   (split; alltweets.arc is renamed to alltweets.arc.unsplit)
+     *    or: java ShardedArchive -bench alltweets.arc [threads]
+     * Splitting again adds the tweets collected into alltweets.arc since the last split to the
+     * shards, and keeps them in alltweets.arc.unsplit.1, .2, ... so that no copy is replaced.
+     * The archive is not split while its TweetLog is open or has segments left.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("-bench")) {
+            benchmark(args[1], args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+            return;
+        }
+        if (args.length < 1) {
+            System.out.println("Usage: java ShardedArchive alltweets.arc [shards]");
+            System.out.println("       java ShardedArchive -bench alltweets.arc [threads]");
+            System.exit(-1);
+        }
+        int existing = shards(args[0]);
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : existing != 0 ? existing : DEFAULT_SHARDS;
+        if (!new File(args[0]).exists()) {
+            System.out.println("Nothing to split: " + args[0] + " does not exist");
+            return;
+        }
+        File unsplit = new File(args[0] + ".unsplit");
+        for (int i = 1; unsplit.exists(); i++) unsplit = new File(args[0] + ".unsplit." + i); // keep every copy
+        long n;
+        try {
+            Closeable lock = TweetLog.lock(args[0]); // no log compacts into it meanwhile
+            try {
+                if (TweetLog.hasSegments(args[0])) {
+                    System.out.println("Not splitting " + args[0] + ": its log has segments not compacted yet; open and close the log first");
+                    return;
+                }
+                n = split(args[0], args[0], shards);
+                // the base is moved aside: the log starts recording compactions from an empty base
+                TweetLog.forgetCompaction(args[0]);
+                // until it is renamed, loaders read its tweets twice; User.put ignores the second copy
+                Files.move(Paths.get(args[0]), unsplit.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                lock.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Not splitting " + args[0] + ": " + e.getMessage());
+            return;
+        }
+        System.out.println("Split " + n + " tweets of " + args[0] + " into " + shards + (existing != 0 ? " existing" : "")
+                + " shards; the original is " + unsplit);
+    }
+}
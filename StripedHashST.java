@@ -0,0 +1,334 @@
+/******************************************************************************
+ *  Compilation:  javac StripedHashST.java
+ *  Execution:    java StripedHashST [threads] [keysPerThread]
+ *  Dependencies: SeparateChainingHashST.java
+ *
+ *  A thread-safe symbol table made of lock-striped separate-chaining hash tables.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *  The {@code StripedHashST} class represents a symbol table of generic
+ *  key-value pairs that can be used by several threads at once.
+ *  It supports <em>put</em>, <em>putIfAbsent</em>, <em>get</em>, <em>contains</em>,
+ *  <em>delete</em>, <em>size</em>, and <em>is-empty</em> methods,
+ *  and iterates over a copy of the values.
+ *  Values cannot be {@code null}—setting the value associated with a key to
+ *  {@code null} is equivalent to deleting the key from the symbol table.
+ *  <p>
+ *  The keys are split between a power of two number of segments by the high bits
+ *  of their mixed hash; each segment is a {@link SeparateChainingHashST} guarded by
+ *  its own read-write lock. Threads working on different segments never wait for
+ *  each other, and readers of one segment only wait for its writers.
+ *  <p>
+ *  The iterator is weakly consistent: it copies the values of one segment at a time,
+ *  under that segment's read lock, so it never blocks the readers of any segment and
+ *  only holds up the writers of the segment being copied. Each segment is copied as
+ *  it was at one point in time, and values put later neither disturb the copy nor
+ *  show up in it, but puts to other segments may land before or after theirs.
+ *  The values themselves are shared, so a value that changes (e.g. a User getting
+ *  new tweets) must guard its own state.
+ */
+public class StripedHashST<Key, Value> implements Iterable<Value> {
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    private final SeparateChainingHashST<Key, Value>[] segments;
+    private final ReentrantReadWriteLock[] locks;
+    private final int shift;  // 32 - log2(number of segments)
+
+    /**
+     * Initializes an empty symbol table with the default number of segments.
+     */
+    public StripedHashST() {
+        this(DEFAULT_SEGMENTS, 0);
+    }
+
+    /**
+     * Initializes an empty symbol table.
+     * The number of segments is rounded up to a power of 2.
+     * @param segments the number of independently locked segments
+     * @param capacity the expected number of keys, split between the segments
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"}) // no generic array creation; every segment is a SeparateChainingHashST<Key, Value>
+    public StripedHashST(int segments, int capacity) {
+        int k = 1;
+        while (k < segments) k *= 2;
+        this.segments = (SeparateChainingHashST<Key, Value>[]) new SeparateChainingHashST[k];
+        locks = new ReentrantReadWriteLock[k];
+        for (int i = 0; i < k; i++) {
+            this.segments[i] = new SeparateChainingHashST<Key, Value>(capacity / k);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        shift = 32 - Integer.numberOfTrailingZeros(k);
+    }
+
+    /**
+     * Returns the number of segments the keys are split between
+     * @return the number of segments
+     */
+    public int segments() {
+        return segments.length;
+    }
+
+    /**
+     * Returns the number of chains of a segment, which grows as keys are put into it
+     * @param i index of the segment, between 0 and segments()-1
+     * @return the number of chains new keys of the segment go to
+     */
+    public int capacity(int i) {
+        locks[i].readLock().lock();
+        try {
+            return segments[i].currentMaxSize();
+        } finally {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the length of each chain of a segment, read under its read lock,
+     * e.g. to sample how well the keys are spread once the segment has grown.
+     * @param i index of the segment, between 0 and segments()-1
+     * @return the chain lengths; {@code null} while the segment is still moving chains to a bigger table
+     */
+    public int[] chainLengths(int i) {
+        locks[i].readLock().lock();
+        try {
+            SeparateChainingHashST<Key, Value> segment = segments[i];
+            if (segment.isResizing()) return null;
+            int[] lengths = new int[segment.currentMaxSize()];
+            int[] k = {0};
+            segment.forEachChainLength(length -> lengths[k[0]++] = length);
+            return lengths;
+        } finally {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the segment holding a key. The high bits of the hash pick the segment,
+     * so that the low bits the segment masks with are still spread evenly.
+     * @param key the key
+     * @return the index of the segment, between 0 and segments()-1
+     */
+    public int segmentOf(Key key) {
+        if (segments.length == 1) return 0;
+        return (key.hashCode() * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * Returns the segment a key with the given hashCode() goes to in a table of the given
+     * number of segments, e.g. to partition data the same way as the table.
+     * @param hashCode hashCode() of the key
+     * @param segments number of segments, a power of 2
+     * @return the index of the segment, between 0 and segments-1
+     */
+    public static int segmentOf(int hashCode, int segments) {
+        if (Integer.bitCount(segments) != 1) throw new IllegalArgumentException(segments + " segments is not a power of 2");
+        if (segments == 1) return 0;
+        return (hashCode * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(segments));
+    }
+
+    /**
+     * Returns the number of key-value pairs in this symbol table. The segments are
+     * counted one after the other, so with concurrent puts the result is only a
+     * lower bound of the size at the end of the call.
+     * @return the number of key-value pairs in this symbol table
+     */
+    public int size() {
+        int n = 0;
+        for (int i = 0; i < segments.length; i++) {
+            locks[i].readLock().lock();
+            try {
+                n += segments[i].size();
+            } finally {
+                locks[i].readLock().unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns true if this symbol table is empty.
+     * @return {@code true} if this symbol table is empty; {@code false} otherwise
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns true if this symbol table contains the specified key.
+     * @param  key the key
+     * @return {@code true} if this symbol table contains {@code key}; {@code false} otherwise
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public boolean contains(Key key) {
+        if (key == null) throw new IllegalArgumentException("argument to contains() is null");
+        return get(key) != null;
+    }
+
+    /**
+     * Returns the value associated with the specified key in this symbol table.
+     * @param  key the key
+     * @return the value associated with {@code key}; {@code null} if no such value
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public Value get(Key key) {
+        if (key == null) throw new IllegalArgumentException("argument to get() is null");
+        int i = segmentOf(key);
+        locks[i].readLock().lock();
+        try {
+            return segments[i].get(key);
+        } finally {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified key-value pair into the symbol table, overwriting the old
+     * value with the new value if the symbol table already contains the specified key.
+     * Deletes the specified key (and its associated value) from this symbol table
+     * if the specified value is {@code null}.
+     * @param  key the key
+     * @param  val the value
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public void put(Key key, Value val) {
+        if (key == null) throw new IllegalArgumentException("first argument to put() is null");
+        int i = segmentOf(key);
+        locks[i].writeLock().lock();
+        try {
+            segments[i].put(key, val);
+        } finally {
+            locks[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts the specified key-value pair unless the key is already in the symbol table,
+     * as one atomic step: of two threads adding the same new key, one inserts its value
+     * and the other gets that value back.
+     * @param  key the key
+     * @param  val the value to insert if the key is absent
+     * @return the value already associated with {@code key}; {@code null} if {@code val} was inserted
+     * @throws IllegalArgumentException if {@code key} or {@code val} is {@code null}
+     */
+    public Value putIfAbsent(Key key, Value val) {
+        if (key == null) throw new IllegalArgumentException("first argument to putIfAbsent() is null");
+        if (val == null) throw new IllegalArgumentException("second argument to putIfAbsent() is null");
+        int i = segmentOf(key);
+        locks[i].writeLock().lock();
+        try {
+            SeparateChainingHashST<Key, Value> segment = segments[i];
+            int h = segment.hash(key);
+            Value old = segment.getByHashedKey(h, key);
+            if (old == null) segment.putByHashedKey(h, key, val);
+            return old;
+        } finally {
+            locks[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the specified key and its associated value from this symbol table
+     * (if the key is in this symbol table).
+     * @param  key the key
+     * @throws IllegalArgumentException if {@code key} is {@code null}
+     */
+    public void delete(Key key) {
+        if (key == null) throw new IllegalArgumentException("argument to delete() is null");
+        int i = segmentOf(key);
+        locks[i].writeLock().lock();
+        try {
+            segments[i].delete(key);
+        } finally {
+            locks[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the values of one segment, e.g. to save or scan the segments in parallel.
+     * The segment is read under its read lock, leaving any incremental resize where it is.
+     * @param i index of the segment, between 0 and segments()-1
+     * @return the values of the segment at the time of the call
+     */
+    public ArrayList<Value> segment(int i) {
+        ArrayList<Value> values = new ArrayList<Value>();
+        copy(i, values);
+        return values;
+    }
+
+    // add the values of segment i to a list, under the segment's read lock
+    private void copy(int i, ArrayList<Value> values) {
+        locks[i].readLock().lock();
+        try {
+            values.ensureCapacity(values.size() + segments[i].size());
+            segments[i].forEachValue(values::add);
+        } finally {
+            locks[i].readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of every value, one segment after the other. Only one segment is
+     * locked at a time, and only for reading, so puts to the other segments go on
+     * meanwhile; a value put during the call may or may not be in the copy.
+     * @return the values of the symbol table, each segment as it was at one point in time
+     */
+    public ArrayList<Value> snapshot() {
+        ArrayList<Value> values = new ArrayList<Value>();
+        for (int i = 0; i < segments.length; i++) copy(i, values);
+        return values;
+    }
+
+    /**
+     * Iterates over a weakly consistent copy of the values; the table can be changed meanwhile
+     */
+    public Iterator<Value> iterator() {
+        return snapshot().iterator();
+    }
+
+    /**
+     * Unit tests the {@code StripedHashST} data type: writer threads putIfAbsent
+     * overlapping keys while the main thread takes snapshots.
+     * Usage: java StripedHashST [threads] [keysPerThread]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        StripedHashST<HashThis, Integer> st = new StripedHashST<>();
+        int[] won = new int[threads];
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                // every thread adds the same keys, so each key is won by exactly one of them
+                for (int i = 0; i < perThread; i++)
+                    if (st.putIfAbsent(new HashThis("user" + i), id) == null) won[id]++;
+            });
+            writers[t].start();
+        }
+        int snapshots = 0, last = 0;
+        boolean running = true;
+        while (running) {
+            running = false;
+            for (Thread writer : writers) running |= writer.isAlive();
+            int size = st.snapshot().size();
+            if (size < last) System.out.println("snapshot shrank from " + last + " to " + size);
+            last = size;
+            snapshots++;
+        }
+        for (Thread writer : writers) writer.join();
+
+        int count = 0;
+        for (Integer val : st) count++;
+        System.out.println(threads + " threads, " + snapshots + " snapshots, per-thread wins " + Arrays.toString(won));
+        System.out.println("size " + st.size() + ", iterated " + count + ", expected " + perThread);
+    }
+}
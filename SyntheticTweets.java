@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+
+/**
+ * Seeded generator of a realistic stream of tweets, for scale and soak tests that can't
+ * wait for the search API. The same seed and parameters always give the same tweets.
+ * <p>
+ * Users are ranked by activity: the user of rank r posts in proportion to 1/(r+1)^ZIPF_S,
+ * so a few users post most tweets. Each user is one of three kinds:
+ * <ul>
+ * <li>humans, who post by the hourly DIURNAL profile of their own time zone, mostly in the
+ *     evening, and never while they sleep, from 10pm-2am for 6 to 9 hours;
+ * <li>always-on bots, who post at the same rate at any hour;
+ * <li>periodic bots, who post every period, with a little jitter, around the clock.
+ * </ul>
+ * Humans and always-on bots post as Poisson processes, drawn minute by minute; every kind
+ * gets the share of the tweets its activity rank gives it. Tweets come out in time order,
+ * with ids made like Twitter's (time since its epoch, then a sequence number), so ids
+ * increase with time as since_id expects. Half of the bots have "bot" in their names.
+ */
+public class SyntheticTweets implements Iterator<Tweet> {
+    public static final double ZIPF_S = 1.0;           // exponent of the activity ranks
+    public static final double BOT_FRACTION = 0.05;    // fraction of users that are bots, half of them periodic
+    public static final double REPLY_FRACTION = 0.1;   // fraction of tweets replying to a recent tweet
+    public static final long START = 1480000000000L;   // time of the first tweet, epoch millis
+    public static final long SEED = 42;                // seed used unless another one is given
+    private static final long TWITTER_EPOCH = 1288834974657L; // millis subtracted from the time in an id
+    private static final int HUMAN = 0, ALWAYS_ON = 1, PERIODIC = 2;
+    private static final int RECENT = 1024;            // tweets that may be replied to
+    // relative activity of humans in each hour of their local time
+    private static final double[] DIURNAL = {
+            0.30, 0.15, 0.08, 0.05, 0.05, 0.08, 0.20, 0.45, 0.65, 0.70, 0.70, 0.75,
+            0.80, 0.75, 0.70, 0.70, 0.75, 0.85, 0.95, 1.00, 1.00, 0.95, 0.80, 0.55};
+    private static final String[] WORDS = ("the a to and of in is it you that for on my this with be just so "
+            + "at like me have are not but all what your get new now out love day time good one today can "
+            + "people know game when more night see go back about great news happy work vote city thanks").split(" ");
+
+    private final long seed;
+    private final long total;            // tweets to generate
+    private final int[][] members;       // users of each kind, by rank
+    private final double[][] cumulative; // cumulative activity of the members of each kind
+    private final double humanRate;      // candidate human tweets per minute, before thinning by the time of day
+    private final double alwaysOnRate;   // always-on bot tweets per minute
+    private final long[] period;         // millis between two tweets of each periodic bot, by its index in members
+    private final PriorityQueue<long[]> due = new PriorityQueue<long[]>((a, b) -> Long.compare(a[0], b[0]));
+                                         // {next time, index} of every periodic bot
+    private final SplittableRandom random;
+    private final long[] recentIds = new long[RECENT];
+    private final int[] recentUsers = new int[RECENT];
+    private final ArrayList<long[]> minute = new ArrayList<long[]>(); // {time, user} of the tweets of the current minute
+    private long minuteStart = START;
+    private int next;                    // next tweet of the current minute
+    private long generated;
+    private long lastMillis = -1;        // time and sequence number of the last id
+    private int sequence;
+
+    /**
+     * @param users number of users
+     * @param total number of tweets to generate
+     * @param days the tweets are spread over about this many days
+     * @param seed seed of every random choice
+     */
+    public SyntheticTweets(int users, long total, double days, long seed) {
+        if (users < 1) throw new IllegalArgumentException(users + " users");
+        if (total < 0) throw new IllegalArgumentException(total + " tweets");
+        if (days <= 0) throw new IllegalArgumentException(days + " days");
+        this.seed = seed;
+        this.total = total;
+        random = new SplittableRandom(seed);
+
+        int[] count = new int[3];
+        int[] kind = new int[users];
+        for (int u = 0; u < users; u++) {
+            double draw = uniform(u, 1);
+            kind[u] = draw >= BOT_FRACTION ? HUMAN : draw < BOT_FRACTION / 2 ? ALWAYS_ON : PERIODIC;
+            count[kind[u]]++;
+        }
+        members = new int[3][];
+        cumulative = new double[3][];
+        for (int k = 0; k < 3; k++) {
+            members[k] = new int[count[k]];
+            cumulative[k] = new double[count[k]];
+        }
+        double all = 0;
+        int[] filled = new int[3];
+        for (int u = 0; u < users; u++) {
+            double weight = Math.pow(u + 1, -ZIPF_S);
+            int k = kind[u], i = filled[k]++;
+            members[k][i] = u;
+            cumulative[k][i] = (i == 0 ? 0 : cumulative[k][i - 1]) + weight;
+            all += weight;
+        }
+
+        double minutes = days * 24 * 60;
+        humanRate = share(HUMAN, all) * total / minutes / humanActivity();
+        alwaysOnRate = share(ALWAYS_ON, all) * total / minutes;
+        period = new long[count[PERIODIC]];
+        for (int i = 0; i < period.length; i++) { // every bot posts its share of the tweets, at least once a day
+            double weight = cumulative[PERIODIC][i] - (i == 0 ? 0 : cumulative[PERIODIC][i - 1]);
+            double tweets = total * weight / all;
+            period[i] = (long) Math.max(60000, Math.min(86400000, minutes * 60000 / Math.max(tweets, 1e-9)));
+            due.add(new long[] {START + (long) (uniform(members[PERIODIC][i], 2) * period[i]), i});
+        }
+    }
+
+    // fraction of the candidate tweets of humans that are kept, averaged over sleep schedules and the day
+    private static double humanActivity() {
+        int grid = 16;
+        double sum = 0;
+        for (int i = 0; i < grid; i++)
+            for (int j = 0; j < grid; j++)
+                for (int m = 0; m < 1440; m++)
+                    if (!asleep(m * 60000L, (i + 0.5) / grid, (j + 0.5) / grid)) sum += DIURNAL[m / 60];
+        return sum / (grid * grid * 1440);
+    }
+
+    // whether a human whose sleep is drawn from the two uniforms is asleep at the given local time of day
+    private static boolean asleep(long localMillis, double start, double length) {
+        long since = Math.floorMod(localMillis - (long) ((22 + 4 * start) * 3600000), 86400000L);
+        return since < (6 + 3 * length) * 3600000;
+    }
+
+    private double share(int kind, double all) {
+        double[] c = cumulative[kind];
+        return c.length == 0 ? 0 : c[c.length - 1] / all;
+    }
+
+    // a number in [0, 1) that only depends on the seed, the user and what it is for
+    private double uniform(int user, int salt) {
+        long z = seed + user * 0x9E3779B97F4A7C15L + salt * 0xC2B2AE3D27D4EB4FL;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * @param user rank of a user
+     * @return the screen name of the user; half of the bots have "bot" in it
+     */
+    public String screenName(int user) {
+        String base = WORDS[(int) (uniform(user, 3) * WORDS.length)] + WORDS[(int) (uniform(user, 4) * WORDS.length)];
+        boolean bot = uniform(user, 1) < BOT_FRACTION;
+        return base + (bot && uniform(user, 5) < 0.5 ? "bot" : "_") + user;
+    }
+
+    /**
+     * @param user rank of a user
+     * @return the offset of the user's time zone from UTC, between -8 and -5 hours, in millis
+     */
+    public long zoneOffset(int user) {
+        return -(5 + (int) (uniform(user, 6) * 4)) * 3600000L;
+    }
+
+    // a user of the given kind, picked in proportion to activity
+    private int pick(int kind) {
+        double[] c = cumulative[kind];
+        int i = Arrays.binarySearch(c, random.nextDouble() * c[c.length - 1]);
+        return members[kind][i >= 0 ? i : Math.min(-(i + 1), c.length - 1)];
+    }
+
+    // number of events of a Poisson process with the given mean
+    private long poisson(double mean) {
+        if (mean > 64) return Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        long n = 0;
+        for (double p = Math.exp(-mean), product = random.nextDouble(); product > p; product *= random.nextDouble()) n++;
+        return n;
+    }
+
+    // generate the tweets of the next minute that has any
+    private void nextMinute() {
+        minute.clear();
+        next = 0;
+        while (minute.isEmpty()) {
+            if (members[HUMAN].length > 0)
+                for (long n = poisson(humanRate); n > 0; n--) {
+                    int user = pick(HUMAN);
+                    long time = minuteStart + random.nextInt(60000);
+                    long local = time + zoneOffset(user);
+                    if (asleep(local, uniform(user, 7), uniform(user, 8))) continue;
+                    if (random.nextDouble() < DIURNAL[(int) Math.floorMod(local / 3600000, 24L)])
+                        minute.add(new long[] {time, user});
+                }
+            if (members[ALWAYS_ON].length > 0)
+                for (long n = poisson(alwaysOnRate); n > 0; n--)
+                    minute.add(new long[] {minuteStart + random.nextInt(60000), pick(ALWAYS_ON)});
+            while (!due.isEmpty() && due.peek()[0] < minuteStart + 60000) {
+                long[] bot = due.poll();
+                minute.add(new long[] {bot[0], members[PERIODIC][(int) bot[1]]});
+                long jitter = (long) ((random.nextDouble() - 0.5) * 0.1 * period[(int) bot[1]]);
+                bot[0] += period[(int) bot[1]] + jitter;
+                due.add(bot);
+            }
+            minuteStart += 60000;
+        }
+        minute.sort((a, b) -> Long.compare(a[0], b[0]));
+    }
+
+    public boolean hasNext() {
+        return generated < total;
+    }
+
+    public Tweet next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        if (next == minute.size()) nextMinute();
+        long[] event = minute.get(next++);
+        long time = event[0];
+        int user = (int) event[1];
+
+        if (time == lastMillis) sequence++;
+        else {
+            lastMillis = time;
+            sequence = 0;
+        }
+        long id = (time - TWITTER_EPOCH) << 22 | sequence;
+
+        String replyTo = null;
+        long replyToId = -1;
+        if (generated >= RECENT && random.nextDouble() < REPLY_FRACTION) {
+            int r = random.nextInt(RECENT);
+            replyTo = screenName(recentUsers[r]);
+            replyToId = recentIds[r];
+        }
+        StringBuilder text = new StringBuilder(replyTo == null ? "" : "@" + replyTo);
+        for (int words = 3 + random.nextInt(15); words > 0; words--)
+            text.append(text.length() == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        int slot = (int) (generated++ % RECENT);
+        recentIds[slot] = id;
+        recentUsers[slot] = user;
+        return new Tweet(id, user + 1, screenName(user), time, text.toString(), replyTo, replyToId, Double.NaN, Double.NaN);
+    }
+
+    /**
+     * Write the tweets to an archive
+     * @param filename name of the archive
+     * @return the number of tweets written
+     */
+    public long write(String filename) throws IOException {
+        TweetArchive.Writer out = new TweetArchive.Writer(filename);
+        try {
+            while (hasNext()) out.add(next());
+        } finally {
+            out.close();
+        }
+        return out.written();
+    }
+
+    /**
+     * Writes a synthetic archive, e.g. to replay with java GatherTweets -replay, or to load
+     * and analyze with AnalyzeTweets, and reports how fast it was generated.
+     * Usage: java SyntheticTweets out.arc tweets users [days] [seed]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("Usage: java SyntheticTweets out.arc tweets users [days] [seed]");
+            System.exit(-1);
+        }
+        long tweets = Long.parseLong(args[1]);
+        int users = Integer.parseInt(args[2]);
+        double days = args.length > 3 ? Double.parseDouble(args[3]) : 30;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : SEED;
+        long start = System.nanoTime();
+        SyntheticTweets generator = new SyntheticTweets(users, tweets, days, seed);
+        long n = generator.write(args[0]);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Wrote %d tweets of %d users to %s in %.1f s (%.0f tweets/s), up to %s%n",
+                n, users, args[0], seconds, n / seconds, new java.util.Date(generator.minuteStart));
+    }
+}
@@ -0,0 +1,166 @@
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * The tweet times of one user, kept as a sorted array of epoch millis.
+ * Like the keys of a RedBlackBST, a time is only stored once: putting a tweet
+ * with a time that is already there replaces the stored tweet.
+ * <p>
+ * The tweets themselves are optional. When they are kept, bodies[i] is the tweet
+ * posted at times[i]; analysis only needs the times and can leave them out.
+ * A tweet costs 8 bytes (12-16 with its body reference) instead of a tree node
+ * and a Date.
+ */
+public class Timeline {
+    private static final int INIT_CAPACITY = 2;
+
+    private long[] times;  // sorted createdAt millis
+    private Tweet[] bodies; // tweet posted at each time; null if bodies are not kept
+    private int n;         // number of times
+
+    /**
+     * Initializes an empty timeline.
+     * @param keepBodies whether the tweets themselves should be stored along with their times
+     */
+    public Timeline(boolean keepBodies) {
+        times = new long[INIT_CAPACITY];
+        if (keepBodies) bodies = new Tweet[INIT_CAPACITY];
+    }
+
+    /**
+     * @return the number of distinct times in the timeline
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return whether the tweets are stored along with their times
+     */
+    public boolean keepsBodies() {
+        return bodies != null;
+    }
+
+    /**
+     * Add one tweet to the timeline
+     * @param time createdAt millis of the tweet
+     * @param body the tweet itself; ignored if bodies are not kept
+     * @return 1 if the time is new, 0 if it is already contained in the timeline
+     */
+    public int put(long time, Tweet body) {
+        int i;
+        if (n == 0 || time > times[n-1]) i = n; // tweets mostly arrive in order
+        else {
+            i = Arrays.binarySearch(times, 0, n, time);
+            if (i >= 0) {
+                if (bodies != null) bodies[i] = body;
+                return 0;
+            }
+            i = -(i + 1);
+        }
+        if (n == times.length) resize(2*n);
+        System.arraycopy(times, i, times, i+1, n-i);
+        times[i] = time;
+        if (bodies != null) {
+            System.arraycopy(bodies, i, bodies, i+1, n-i);
+            bodies[i] = body;
+        }
+        n++;
+        return 1;
+    }
+
+    /**
+     * @param i index between 0 and size()-1
+     * @return the i-th smallest time
+     */
+    public long time(int i) {
+        if (i < 0 || i >= n) throw new IndexOutOfBoundsException("time " + i + " of " + n);
+        return times[i];
+    }
+
+    /**
+     * @param i index between 0 and size()-1
+     * @return the tweet posted at time(i), or null if bodies are not kept
+     */
+    public Tweet body(int i) {
+        if (i < 0 || i >= n) throw new IndexOutOfBoundsException("tweet " + i + " of " + n);
+        return bodies == null ? null : bodies[i];
+    }
+
+    /**
+     * @return a read-only view of the sorted times; nothing is copied
+     */
+    public LongBuffer times() {
+        return LongBuffer.wrap(times, 0, n).asReadOnlyBuffer();
+    }
+
+    /**
+     * Shrink the arrays to the number of times, e.g. once loading is over
+     */
+    public void trim() {
+        if (n < times.length) resize(Math.max(n, 1));
+    }
+
+    private void resize(int capacity) {
+        times = Arrays.copyOf(times, capacity);
+        if (bodies != null) bodies = Arrays.copyOf(bodies, capacity);
+    }
+
+    private static Object[] retained; // keeps the structure being measured reachable
+
+    // bytes of heap in use after a full collection
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Compares the heap used per tweet by a RedBlackBST<Date, Tweet>, as User.put used to build,
+     * with a Timeline with and without bodies.
+     * Usage: java Timeline [users] [tweetsPerUser]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int perUser = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        java.util.Random random = new java.util.Random(42);
+        Tweet[] tweets = new Tweet[users * perUser]; // shared by all three, so not counted
+        for (int i = 0; i < tweets.length; i++)
+            tweets[i] = new Tweet(i, i / perUser, "user" + i / perUser, 1480000000000L + random.nextInt(1 << 30),
+                    "", null, -1, Double.NaN, Double.NaN);
+
+        long before = usedHeap();
+        retained = new Object[users];
+        for (int u = 0; u < users; u++) {
+            RedBlackBST<java.util.Date, Tweet> tree = new RedBlackBST<>();
+            for (int k = u * perUser; k < (u+1) * perUser; k++)
+                tree.put(new java.util.Date(tweets[k].getCreatedAt()), tweets[k]);
+            retained[u] = tree;
+        }
+        long treeBytes = usedHeap() - before;
+        retained = null;
+
+        long[] timelineBytes = new long[2];
+        for (int keep = 0; keep < 2; keep++) {
+            before = usedHeap();
+            retained = new Object[users];
+            for (int u = 0; u < users; u++) {
+                Timeline timeline = new Timeline(keep == 1);
+                for (int k = u * perUser; k < (u+1) * perUser; k++)
+                    timeline.put(tweets[k].getCreatedAt(), tweets[k]);
+                timeline.trim();
+                retained[u] = timeline;
+            }
+            timelineBytes[keep] = usedHeap() - before;
+            retained = null;
+        }
+
+        double n = tweets.length;
+        System.out.printf("%d users, %d tweets each%n", users, perUser);
+        System.out.printf("RedBlackBST<Date,Tweet>: %.1f bytes/tweet%n", treeBytes / n);
+        System.out.printf("Timeline with bodies:    %.1f bytes/tweet%n", timelineBytes[1] / n);
+        System.out.printf("Timeline times only:     %.1f bytes/tweet%n", timelineBytes[0] / n);
+    }
+}
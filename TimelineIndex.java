@@ -0,0 +1,207 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Fixed-layout file of every user's tweet times, read through memory-mapped buffers
+ * so that analysis can scan millions of users without loading their tweets onto the heap.
+ *
+ * Layout (all numbers big-endian):
+ *   header:    int MAGIC, int VERSION, int users, int 0, long namesOffset, long timesOffset
+ *   directory: one ENTRY_BYTES entry per user: long firstTime, int count, int nameLength, long nameOffset
+ *   names:     UTF-8 screen names, nameOffset is relative to namesOffset
+ *   times:     sorted createdAt millis of each user, firstTime is an index in longs from timesOffset
+ * The times section is mapped in chunks of CHUNK_LONGS; no user's run crosses a chunk boundary.
+ * The directory is mapped in chunks of DIRECTORY_ENTRIES entries, and names are only read
+ * when asked for, so neither is limited by the 2 GB of a single mapping.
+ */
+public class TimelineIndex implements Closeable {
+    public static final int MAGIC = 0x54574958; // "TWIX"
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int ENTRY_BYTES = 24;
+    private static final int CHUNK_LONGS = 1 << 27; // 1 GB of times per mapped chunk
+    private static final int DIRECTORY_ENTRIES = 1 << 26; // 1.5 GB of directory per mapped chunk
+
+    private RandomAccessFile file;
+    private int users;
+    private ByteBuffer[] directory;
+    private long namesOffset;
+    private LongBuffer[] chunks;
+
+    /**
+     * Map an index file written by write()
+     * @param filename name of the index
+     */
+    public TimelineIndex(String filename) throws IOException {
+        file = new RandomAccessFile(filename, "r");
+        FileChannel channel = file.getChannel();
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            file.close();
+            throw new IOException(filename + " is not a timeline index");
+        }
+        users = header.getInt();
+        header.getInt();
+        namesOffset = header.getLong();
+        long timesOffset = header.getLong();
+
+        directory = new ByteBuffer[(users + DIRECTORY_ENTRIES - 1) / DIRECTORY_ENTRIES];
+        for (int i = 0; i < directory.length; i++) {
+            long entries = Math.min(DIRECTORY_ENTRIES, users - (long) i * DIRECTORY_ENTRIES);
+            directory[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES + (long) i * DIRECTORY_ENTRIES * ENTRY_BYTES, entries * ENTRY_BYTES);
+        }
+        long totalLongs = (channel.size() - timesOffset) / 8;
+        chunks = new LongBuffer[(int) ((totalLongs + CHUNK_LONGS - 1) / CHUNK_LONGS)];
+        for (int i = 0; i < chunks.length; i++) {
+            long longs = Math.min(CHUNK_LONGS, totalLongs - (long) i * CHUNK_LONGS);
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                    timesOffset + (long) i * CHUNK_LONGS * 8, longs * 8);
+            chunks[i] = chunk.asLongBuffer();
+        }
+    }
+
+    /**
+     * @return the number of users in the index
+     */
+    public int users() {
+        return users;
+    }
+
+    // the directory chunk holding the entry of a user
+    private ByteBuffer entries(int user) {
+        return directory[user / DIRECTORY_ENTRIES];
+    }
+
+    // position of the entry of a user in its directory chunk
+    private static int entry(int user) {
+        return user % DIRECTORY_ENTRIES * ENTRY_BYTES;
+    }
+
+    /**
+     * @param user index of the user, between 0 and users()-1
+     * @return the number of tweets of this user
+     */
+    public int count(int user) {
+        return entries(user).getInt(entry(user) + 8);
+    }
+
+    /**
+     * Reads the screen name of a user from the file, e.g. for the few users flagged
+     * @param user index of the user, between 0 and users()-1
+     * @return the screen name of this user
+     */
+    public String screenName(int user) throws IOException {
+        int length = entries(user).getInt(entry(user) + 12);
+        long offset = entries(user).getLong(entry(user) + 16);
+        ByteBuffer name = ByteBuffer.allocate(length);
+        while (name.hasRemaining())
+            if (file.getChannel().read(name, namesOffset + offset + name.position()) < 0)
+                throw new EOFException("name of user " + user + " is cut short");
+        return new String(name.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the tweet times of one user as a view of the mapped file; nothing is copied.
+     * @param user index of the user, between 0 and users()-1
+     * @return the sorted createdAt millis of this user, from position 0 to limit
+     */
+    public LongBuffer times(int user) {
+        long first = entries(user).getLong(entry(user));
+        int offset = (int) (first % CHUNK_LONGS);
+        LongBuffer times = chunks[(int) (first / CHUNK_LONGS)].duplicate();
+        times.position(offset);
+        times.limit(offset + count(user));
+        return times.slice();
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Write the tweet times of every user of an archive sorted by TweetArchive.sort to an index
+     * file, one user at a time: only the times of the current user are on the heap. The directory,
+     * names and times are streamed to temporary files next to the index, then put together.
+     * @param sortedArchive archive sorted by screen name, then creation time
+     * @param filename name of the index to create
+     * @return the number of users written
+     * @throws IOException if the archive is not sorted by screen name
+     */
+    public static int write(String sortedArchive, String filename) throws IOException {
+        File[] parts = {new File(filename + ".dir.tmp"), new File(filename + ".names.tmp"), new File(filename + ".times.tmp")};
+        try {
+            int users = 0;
+            long namesLength = 0;
+            long timesLength = 0;
+            TweetArchive.Reader in = new TweetArchive.Reader(sortedArchive, false);
+            DataOutputStream dir = stream(parts[0]), names = stream(parts[1]), times = stream(parts[2]);
+            try {
+                String current = null;
+                Timeline timeline = null;
+                while (true) {
+                    Tweet curr = in.hasNext() ? in.next() : null;
+                    if (curr != null && curr.getScreenName().equals(current)) {
+                        timeline.put(curr.getCreatedAt(), null);
+                        continue;
+                    }
+                    if (timeline != null) { // the previous user is complete
+                        int count = timeline.size();
+                        if (count > CHUNK_LONGS) throw new IllegalArgumentException(current + " has too many tweets for one chunk");
+                        for (; timesLength % CHUNK_LONGS + count > CHUNK_LONGS; timesLength++) // start the next chunk
+                            times.writeLong(0);
+                        byte[] name = current.getBytes(StandardCharsets.UTF_8);
+                        dir.writeLong(timesLength);
+                        dir.writeInt(count);
+                        dir.writeInt(name.length);
+                        dir.writeLong(namesLength);
+                        names.write(name);
+                        namesLength += name.length;
+                        for (int k = 0; k < count; k++) times.writeLong(timeline.time(k));
+                        timesLength += count;
+                        users++;
+                    }
+                    if (curr == null) break;
+                    if (current != null && curr.getScreenName().compareTo(current) < 0)
+                        throw new IOException(sortedArchive + " is not sorted by screen name; use java TweetArchive -sort");
+                    current = curr.getScreenName();
+                    timeline = new Timeline(false);
+                    timeline.put(curr.getCreatedAt(), null);
+                }
+            } finally {
+                in.close();
+                dir.close();
+                names.close();
+                times.close();
+            }
+
+            long namesOffset = HEADER_BYTES + (long) users * ENTRY_BYTES;
+            long timesOffset = (namesOffset + namesLength + 7) / 8 * 8;
+            try (DataOutputStream out = stream(new File(filename))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(users);
+                out.writeInt(0);
+                out.writeLong(namesOffset);
+                out.writeLong(timesOffset);
+                Files.copy(parts[0].toPath(), out);
+                Files.copy(parts[1].toPath(), out);
+                for (long pad = namesOffset + namesLength; pad < timesOffset; pad++)
+                    out.writeByte(0);
+                Files.copy(parts[2].toPath(), out);
+            }
+            return users;
+        } finally {
+            for (File part : parts) part.delete();
+        }
+    }
+
+    private static DataOutputStream stream(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+}
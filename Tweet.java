@@ -0,0 +1,118 @@
+import twitter4j.GeoLocation;
+import twitter4j.Status;
+
+import java.io.Serializable;
+
+/**
+ * The parts of a tweet that the detector actually uses.
+ * A Tweet is built from a twitter4j Status when it is collected,
+ * and is what gets written to and read back from a TweetArchive.
+ */
+public class Tweet implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private long id;
+	private long userId;
+	private String screenName;
+	private long createdAt;             // epoch millis
+	private String text;
+	private String inReplyToScreenName; // null if the tweet is not a reply
+	private long inReplyToStatusId;     // -1 if the tweet is not a reply
+	private double latitude;            // NaN if the tweet is not geotagged
+	private double longitude;           // NaN if the tweet is not geotagged
+
+	public Tweet(long id, long userId, String screenName, long createdAt, String text,
+				 String inReplyToScreenName, long inReplyToStatusId, double latitude, double longitude) {
+		this.id = id;
+		this.userId = userId;
+		this.screenName = screenName;
+		this.createdAt = createdAt;
+		this.text = text;
+		this.inReplyToScreenName = inReplyToScreenName;
+		this.inReplyToStatusId = inReplyToStatusId;
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+
+	/**
+	 * Copy the fields we keep out of a Status returned by the API.
+	 * @param status tweet returned by twitter4j
+	 */
+	public Tweet(Status status) {
+		this(status.getId(), status.getUser().getId(), status.getUser().getScreenName(),
+				status.getCreatedAt().getTime(), status.getText(), status.getInReplyToScreenName(),
+				status.getInReplyToStatusId(), Double.NaN, Double.NaN);
+		GeoLocation geo = status.getGeoLocation();
+		if (geo != null) {
+			latitude = geo.getLatitude();
+			longitude = geo.getLongitude();
+		}
+	}
+
+	/**
+	 * @return the tweet id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the id of the user who posted the tweet
+	 */
+	public long getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @return the screen name of the user who posted the tweet
+	 */
+	public String getScreenName() {
+		return screenName;
+	}
+
+	/**
+	 * @return the creation time in milliseconds since the epoch
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	/**
+	 * @return the text of the tweet
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return the screen name this tweet replies to, or null
+	 */
+	public String getInReplyToScreenName() {
+		return inReplyToScreenName;
+	}
+
+	/**
+	 * @return the id of the tweet this one replies to, or -1
+	 */
+	public long getInReplyToStatusId() {
+		return inReplyToStatusId;
+	}
+
+	/**
+	 * @return the latitude, or NaN if the tweet is not geotagged
+	 */
+	public double getLatitude() {
+		return latitude;
+	}
+
+	/**
+	 * @return the longitude, or NaN if the tweet is not geotagged
+	 */
+	public double getLongitude() {
+		return longitude;
+	}
+
+	public String toString() {
+		return "@" + screenName + " " + createdAt + " " + text;
+	}
+}
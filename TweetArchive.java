@@ -0,0 +1,454 @@
+import twitter4j.Status;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Columnar binary file of Tweets, used instead of serializing whole
+ * twitter4j Status objects with an ObjectOutputStream.
+ *
+ * The file starts with MAGIC and VERSION and is followed by any number of blocks.
+ * Each block holds up to BLOCK_SIZE tweets stored column by column:
+ *   int n, long[n] id, long[n] userId, long[n] createdAt, long[n] inReplyToStatusId,
+ *   double[n] latitude, double[n] longitude,
+ *   UTF[n] screenName, UTF[n] inReplyToScreenName, UTF[n] text
+ * Blocks do not depend on each other, so new blocks can be appended to an existing file.
+ * The text column is last so that readers which do not need it can skip over it.
+ */
+public class TweetArchive {
+    public static final int MAGIC = 0x54574131; // "TWA1"
+    public static final int VERSION = 1;
+    public static final int BLOCK_SIZE = 4096;  // tweets per block
+    public static final int RUN_SIZE = 1 << 20; // tweets sorted in memory at once by sort()
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Order of a sorted archive: by screen name, then by creation time
+     */
+    public static final Comparator<Tweet> BY_USER_AND_TIME = Comparator.comparing(Tweet::getScreenName)
+            .thenComparingLong(Tweet::getCreatedAt)
+            .thenComparingLong(Tweet::getId);
+
+    /**
+     * Writes Tweets to an archive, one block at a time.
+     */
+    public static class Writer implements Closeable {
+        private DataOutputStream out;
+        private CountingStream file; // counts the bytes that reach the file
+        private Tweet[] block = new Tweet[BLOCK_SIZE];
+        private int n;        // tweets in the current block
+        private long written; // tweets written so far
+
+        /**
+         * Create a new archive, replacing any file of the same name.
+         * @param filename name of the archive
+         */
+        public Writer(String filename) throws IOException {
+            this(filename, false);
+        }
+
+        /**
+         * @param filename name of the archive
+         * @param append if true, new blocks are added after the ones already in the file
+         */
+        public Writer(String filename, boolean append) throws IOException {
+            File file = new File(filename);
+            boolean header = !append || file.length() == 0;
+            if (!append) TweetLog.forgetCompaction(filename); // it recorded compactions into the archive replaced
+            this.file = new CountingStream(new FileOutputStream(file, append));
+            out = new DataOutputStream(new BufferedOutputStream(this.file, BUFFER_SIZE));
+            if (header) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+        }
+
+        /**
+         * Add one tweet to the archive
+         * @param tweet tweet to write
+         */
+        public void add(Tweet tweet) throws IOException {
+            block[n++] = tweet;
+            if (n == BLOCK_SIZE) writeBlock();
+        }
+
+        /**
+         * @return the number of tweets added to this writer
+         */
+        public long written() {
+            return written + n;
+        }
+
+        /**
+         * @return the number of bytes that reached the file so far; all of them after flush() or close()
+         */
+        public long bytes() {
+            return file.count;
+        }
+
+        /**
+         * Write out the current block, even if it is not full, and flush the stream
+         */
+        public void flush() throws IOException {
+            writeBlock();
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            flush();
+            out.close();
+        }
+
+        private void writeBlock() throws IOException {
+            if (n == 0) return;
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) out.writeLong(block[i].getId());
+            for (int i = 0; i < n; i++) out.writeLong(block[i].getUserId());
+            for (int i = 0; i < n; i++) out.writeLong(block[i].getCreatedAt());
+            for (int i = 0; i < n; i++) out.writeLong(block[i].getInReplyToStatusId());
+            for (int i = 0; i < n; i++) out.writeDouble(block[i].getLatitude());
+            for (int i = 0; i < n; i++) out.writeDouble(block[i].getLongitude());
+            for (int i = 0; i < n; i++) writeString(block[i].getScreenName());
+            for (int i = 0; i < n; i++) writeString(block[i].getInReplyToScreenName());
+            for (int i = 0; i < n; i++) writeString(block[i].getText());
+            written += n;
+            for (int i = 0; i < n; i++) block[i] = null;
+            n = 0;
+        }
+
+        // null is stored as the empty string
+        private void writeString(String s) throws IOException {
+            out.writeUTF(s == null ? "" : s);
+        }
+    }
+
+    // an output stream counting the bytes written through it
+    private static class CountingStream extends FilterOutputStream {
+        long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    // an input stream ending after a given number of bytes
+    private static class LimitedStream extends FilterInputStream {
+        long left;
+
+        LimitedStream(InputStream in, long length) {
+            super(in);
+            left = length;
+        }
+
+        public int read() throws IOException {
+            if (left <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) left--;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) return -1;
+            int read = in.read(b, off, (int) Math.min(len, left));
+            if (read > 0) left -= read;
+            return read;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, left));
+            left -= skipped;
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), left);
+        }
+    }
+
+    /**
+     * Reads the Tweets of an archive back in the order they were written.
+     */
+    public static class Reader implements Iterator<Tweet>, Closeable {
+        private DataInputStream in;
+        private boolean withText; // false if the text column should be skipped
+        private int n;            // tweets in the current block
+        private int current;      // index of the next tweet in the current block
+        private long[] id = new long[BLOCK_SIZE];
+        private long[] userId = new long[BLOCK_SIZE];
+        private long[] createdAt = new long[BLOCK_SIZE];
+        private long[] inReplyToStatusId = new long[BLOCK_SIZE];
+        private double[] latitude = new double[BLOCK_SIZE];
+        private double[] longitude = new double[BLOCK_SIZE];
+        private String[] screenName = new String[BLOCK_SIZE];
+        private String[] inReplyToScreenName = new String[BLOCK_SIZE];
+        private String[] text = new String[BLOCK_SIZE];
+
+        /**
+         * Open an archive and read every column
+         * @param filename name of the archive
+         */
+        public Reader(String filename) throws IOException {
+            this(filename, true);
+        }
+
+        /**
+         * @param filename name of the archive
+         * @param withText if false, the tweet text is skipped and returned Tweets have a null text
+         */
+        public Reader(String filename, boolean withText) throws IOException {
+            this(filename, withText, Long.MAX_VALUE);
+        }
+
+        /**
+         * Open the first bytes of an archive, e.g. the part of a file known to hold whole blocks
+         * @param filename name of the archive
+         * @param withText if false, the tweet text is skipped and returned Tweets have a null text
+         * @param length number of bytes to read; anything after them is ignored
+         */
+        public Reader(String filename, boolean withText, long length) throws IOException {
+            this.withText = withText;
+            in = new DataInputStream(new BufferedInputStream(new LimitedStream(new FileInputStream(filename), length), BUFFER_SIZE));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(filename + " is not a tweet archive");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                in.close();
+                throw new IOException(filename + " has unsupported archive version " + version);
+            }
+        }
+
+        public boolean hasNext() {
+            if (current < n) return true;
+            try {
+                return readBlock();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public void remove() throws UnsupportedOperationException {
+            throw new UnsupportedOperationException("remove is not implemented");
+        }
+
+        public Tweet next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            int i = current++;
+            return new Tweet(id[i], userId[i], screenName[i], createdAt[i], text[i],
+                    inReplyToScreenName[i], inReplyToStatusId[i], latitude[i], longitude[i]);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        // read the next block; false at the end of the file
+        private boolean readBlock() throws IOException {
+            try {
+                n = in.readInt();
+            } catch (EOFException e) { // no more blocks
+                n = 0;
+                current = 0;
+                return false;
+            }
+            if (n <= 0 || n > BLOCK_SIZE) throw new IOException("corrupt block of " + n + " tweets");
+            for (int i = 0; i < n; i++) id[i] = in.readLong();
+            for (int i = 0; i < n; i++) userId[i] = in.readLong();
+            for (int i = 0; i < n; i++) createdAt[i] = in.readLong();
+            for (int i = 0; i < n; i++) inReplyToStatusId[i] = in.readLong();
+            for (int i = 0; i < n; i++) latitude[i] = in.readDouble();
+            for (int i = 0; i < n; i++) longitude[i] = in.readDouble();
+            for (int i = 0; i < n; i++) screenName[i] = in.readUTF();
+            for (int i = 0; i < n; i++) {
+                String s = in.readUTF();
+                inReplyToScreenName[i] = s.isEmpty() ? null : s;
+            }
+            for (int i = 0; i < n; i++) {
+                if (withText) text[i] = in.readUTF();
+                else skip(in.readUnsignedShort());
+            }
+            current = 0;
+            return true;
+        }
+
+        private void skip(int bytes) throws IOException {
+            while (bytes > 0) {
+                int skipped = in.skipBytes(bytes);
+                if (skipped <= 0) throw new EOFException();
+                bytes -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Convert a file of serialized Status objects, as written by the old GatherTweets.save,
+     * into an archive.
+     * @param datFile file of serialized Status objects
+     * @param archiveFile name of the archive to create
+     * @return the number of tweets converted
+     */
+    public static long convert(String datFile, String archiveFile) throws IOException {
+        ObjectInputStream objInput = null;
+        Writer out = new Writer(archiveFile);
+        try {
+            objInput = new ObjectInputStream(new BufferedInputStream(new FileInputStream(datFile), BUFFER_SIZE));
+            while (true) { // Will loop until it reaches the end of the file, then will break with EOFException
+                Status curr = (Status) objInput.readObject();
+                out.add(new Tweet(curr));
+            }
+        } catch (EOFException ignored) {
+            // Expected EOFException breaks the while loop
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            if (objInput != null) objInput.close();
+            out.close();
+        }
+        return out.written();
+    }
+
+    /**
+     * Sort an archive by screen name, then creation time, with an external merge sort:
+     * runs of runSize tweets are sorted in memory and written to temporary archives,
+     * which are then merged. Memory use is bounded by runSize tweets plus one block per run,
+     * whatever the size of the archive.
+     * @param inFile archive to sort
+     * @param outFile name of the sorted archive to create
+     * @param runSize number of tweets sorted in memory at once
+     * @return the number of tweets sorted
+     */
+    public static long sort(String inFile, String outFile, int runSize) throws IOException {
+        ArrayList<File> runs = new ArrayList<File>();
+        File dir = new File(outFile).getAbsoluteFile().getParentFile();
+        Reader in = new Reader(inFile);
+        try {
+            Tweet[] run = new Tweet[runSize];
+            while (in.hasNext()) {
+                int n = 0;
+                while (n < runSize && in.hasNext()) run[n++] = in.next();
+                Arrays.sort(run, 0, n, BY_USER_AND_TIME);
+                File file = File.createTempFile("run", ".arc", dir);
+                file.deleteOnExit();
+                runs.add(file);
+                Writer out = new Writer(file.getPath());
+                for (int i = 0; i < n; i++) out.add(run[i]);
+                out.close();
+                Arrays.fill(run, 0, n, null);
+            }
+        } finally {
+            in.close();
+        }
+
+        // merge the runs, always taking the smallest head
+        PriorityQueue<Object[]> heads = new PriorityQueue<Object[]>(Math.max(runs.size(), 1),
+                (a, b) -> BY_USER_AND_TIME.compare((Tweet) a[0], (Tweet) b[0]));
+        Writer out = new Writer(outFile);
+        try {
+            for (File file : runs) {
+                Reader run = new Reader(file.getPath());
+                if (run.hasNext()) heads.add(new Object[] { run.next(), run });
+                else run.close();
+            }
+            while (!heads.isEmpty()) {
+                Object[] head = heads.poll();
+                Reader run = (Reader) head[1];
+                out.add((Tweet) head[0]);
+                if (run.hasNext()) {
+                    head[0] = run.next();
+                    heads.add(head);
+                } else run.close();
+            }
+        } finally {
+            for (Object[] head : heads) ((Reader) head[1]).close();
+            out.close();
+            for (File file : runs) file.delete();
+        }
+        return out.written();
+    }
+
+    // time loading n synthetic tweets from an ObjectOutputStream dump and from an archive
+    private static void benchmark(int n) throws IOException, ClassNotFoundException {
+        File dat = File.createTempFile("tweets", ".dat");
+        File arc = File.createTempFile("tweets", ".arc");
+        dat.deleteOnExit();
+        arc.deleteOnExit();
+        java.util.Random random = new java.util.Random(42);
+        ObjectOutputStream objOutput = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(dat), BUFFER_SIZE));
+        Writer out = new Writer(arc.getPath());
+        for (int i = 0; i < n; i++) {
+            Tweet t = new Tweet(i, random.nextInt(n / 10 + 1), "user" + random.nextInt(n / 10 + 1),
+                    1480000000000L + random.nextInt(1 << 30), "tweet number " + i + " from the synthetic benchmark set",
+                    null, -1, Double.NaN, Double.NaN);
+            objOutput.writeObject(t);
+            objOutput.reset(); // like separate Status objects, no back references between tweets
+            out.add(t);
+        }
+        objOutput.close();
+        out.close();
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long check = 0;
+            ObjectInputStream objInput = new ObjectInputStream(new BufferedInputStream(new FileInputStream(dat), BUFFER_SIZE));
+            try {
+                while (true) check += ((Tweet) objInput.readObject()).getCreatedAt();
+            } catch (EOFException ignored) {
+            } finally {
+                objInput.close();
+            }
+            long serialized = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Reader in = new Reader(arc.getPath());
+            while (in.hasNext()) check -= in.next().getCreatedAt();
+            in.close();
+            long columnar = System.nanoTime() - start;
+            System.out.printf("round %d: serialized %d ms (%d bytes), archive %d ms (%d bytes), speedup %.1fx%s%n",
+                    round, serialized / 1000000, dat.length(), columnar / 1000000, arc.length(),
+                    (double) serialized / columnar, check == 0 ? "" : " MISMATCH");
+        }
+    }
+
+    /**
+     * Usage: java TweetArchive alltweets.dat alltweets.arc
+     *    or: java TweetArchive -sort alltweets.arc sorted.arc [runSize]
+     *    or: java TweetArchive -bench [numTweets]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 1 && args[0].equals("-bench")) {
+            benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("-sort")) {
+            long n = sort(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : RUN_SIZE);
+            System.out.println("Sorted " + n + " tweets from " + args[1] + " into " + args[2]);
+            return;
+        }
+        if (args.length < 2) {
+            System.out.println("Usage: java TweetArchive oldFile.dat newFile.arc");
+            System.out.println("       java TweetArchive -sort alltweets.arc sorted.arc [runSize]");
+            System.out.println("       java TweetArchive -bench [numTweets]");
+            System.exit(-1);
+        }
+        long n = convert(args[0], args[1]);
+        System.out.println("Converted " + n + " tweets from " + args[0] + " to " + args[1]);
+    }
+}
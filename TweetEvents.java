@@ -0,0 +1,129 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the hot paths of collection, persistence and analysis,
+ * to tell where the time of a slow run went. They are recorded with
+ * java -XX:StartFlightRecording=filename=run.jfr GatherTweets ... and read with
+ * jfr print --categories Tweets run.jfr, or in JDK Mission Control.
+ * <p>
+ * Every event is used the same way: created, begun, then ended and committed only if
+ * shouldCommit(), with its fields filled in just before the commit. When no recording
+ * is running, shouldCommit() is false and the JIT removes the event altogether.
+ */
+public class TweetEvents {
+
+    private TweetEvents() { }
+
+    @Name("tweets.Search")
+    @Label("Search")
+    @Category({"Tweets", "Collection"})
+    @Description("One page of a search of the TweetSource")
+    static class Search extends Event {
+        @Label("Location")
+        String location;
+        @Label("Page")
+        int page;
+        @Label("Tweets Returned")
+        int returned;
+        @Label("Remaining Searches")
+        @Description("Searches left in the rate-limit window; -1 if unknown")
+        int remaining;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("tweets.Insert")
+    @Label("Insert")
+    @Category({"Tweets", "Collection"})
+    @Description("Storing the tweets of one page of search results")
+    static class Insert extends Event {
+        @Label("Tweets")
+        int tweets;
+        @Label("New Tweets")
+        int inserted;
+        @Label("Filtered")
+        @Description("Duplicates rejected by the id filter")
+        int filtered;
+        @Label("Stored Users")
+        int users;
+    }
+
+    @Name("tweets.Save")
+    @Label("Save")
+    @Category({"Tweets", "Persistence"})
+    @Description("A full copy of the stored tweets written to an archive")
+    static class Save extends Event {
+        @Label("File")
+        String file;
+        @Label("Users")
+        int users;
+        @Label("Tweets")
+        long tweets;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("tweets.Load")
+    @Label("Load")
+    @Category({"Tweets", "Persistence"})
+    @Description("Stored tweets read back from an archive, its shards and its log")
+    static class Load extends Event {
+        @Label("File")
+        String file;
+        @Label("Users")
+        int users;
+        @Label("Tweets")
+        long tweets;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("tweets.Resize")
+    @Label("Hash Table Resize")
+    @Category({"Tweets", "Symbol Tables"})
+    @Description("A SeparateChainingHashST growing; an incremental resize only allocates the new chains")
+    static class Resize extends Event {
+        @Label("Keys")
+        int keys;
+        @Label("Chains Before")
+        int from;
+        @Label("Chains After")
+        int to;
+        @Label("Incremental")
+        boolean incremental;
+    }
+
+    @Name("tweets.Score")
+    @Label("Score User")
+    @Category({"Tweets", "Analysis"})
+    @Description("The sleep detector run on the timeline of one user; only slow ones are recorded by default")
+    @Threshold("1 ms")
+    static class Score extends Event {
+        @Label("Tweets")
+        int tweets;
+        @Label("Multiplier")
+        @Description("Longest time awake over the average; 1 if the user seems to sleep")
+        double multiplier;
+    }
+
+    @Name("tweets.Analysis")
+    @Label("Analysis")
+    @Category({"Tweets", "Analysis"})
+    @Description("A pass of the detector over every user")
+    static class Analysis extends Event {
+        @Label("Mode")
+        String mode;
+        @Label("Users Scored")
+        int scored;
+        @Label("Users Flagged")
+        int flagged;
+    }
+}
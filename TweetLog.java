@@ -0,0 +1,496 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of collected tweets in front of a base archive.
+ *
+ * Every batch of new tweets is appended to the current segment, a TweetArchive file
+ * named base.log.N, and flushed, so a checkpoint costs as much as the batch and not
+ * as much as the whole archive. Once a segment holds SEGMENT_TWEETS tweets it is closed
+ * and a new one is started; a background thread compacts closed segments by appending
+ * their blocks to the base archive and deleting them.
+ *
+ * Compaction is recorded in a small file, base.log.compacted, holding the length of the
+ * base archive up to the last whole compaction, a CRC32 of the STAMP_BYTES before that length,
+ * and the number of the last segment compacted.
+ * It is replaced atomically once a segment has been appended and synced, and only then is
+ * the segment deleted. So after a crash:
+ * <ul>
+ * <li>bytes of the base archive past the recorded length are a compaction cut short; the
+ *     log truncates them when it is opened, and replay() does not read them, and the
+ *     segment is compacted again;</li>
+ * <li>a segment up to the recorded one was compacted but not deleted yet; the log deletes
+ *     it when it is opened, and replay() skips it, so no tweet is appended twice;</li>
+ * <li>a torn block at the end of the last segment is dropped.</li>
+ * </ul>
+ * The record only holds for the archive it was written for: TweetArchive.Writer deletes it
+ * when it writes a new archive over the base, and the log then starts recording from the
+ * new base. A base replaced any other way no longer matches the recorded CRC, and opening
+ * or replaying the log fails instead of cutting the new base to the old length.
+ * <p>
+ * An open log holds a lock on base.log.lock, so that no tool rewrites the base archive
+ * (e.g. ShardedArchive) while the compactor may append to it.
+ */
+public class TweetLog implements Closeable {
+    public static final int SEGMENT_TWEETS = 100000; // tweets per segment before rolling
+
+    private final String base;       // name of the compacted archive
+    private final int segmentTweets;
+    private int segment;             // number of the current segment
+    private TweetArchive.Writer out; // writer of the current segment
+    private final LinkedBlockingQueue<Integer> closed = new LinkedBlockingQueue<Integer>(); // segments to compact
+    private final Thread compactor;
+    private final Closeable lock;    // held on the base archive until the log is closed
+    private volatile IOException failure; // first error of the compactor, reported by the next append
+
+    private static final int STOP = -1; // queued to make the compactor finish
+    private static final int MAGIC = 0x54574c43; // "TWLC", start of the file recording compaction
+    private static final int STAMP_BYTES = 1 << 16; // bytes of the base before the recorded length that identify it
+    private static final Metrics.Histogram APPEND = Metrics.timer("tweets_log_append_seconds", "time to append and flush a checkpoint");
+    private static final Metrics.Counter APPENDED_BYTES = Metrics.counter("tweets_log_bytes_total", "bytes appended to log segments");
+    private static final Metrics.Histogram COMPACTION = Metrics.timer("tweets_compaction_seconds", "time to compact a segment into the base archive");
+    private static final Metrics.Counter COMPACTED_BYTES = Metrics.counter("tweets_compacted_bytes_total", "bytes compacted into the base archive");
+
+    /**
+     * Open the log of a base archive, starting a new segment after any left over.
+     * Call replay() first to read back what the log holds.
+     * @param base name of the base archive, e.g. alltweets.arc
+     */
+    public TweetLog(String base) throws IOException {
+        this(base, SEGMENT_TWEETS);
+    }
+
+    /**
+     * @param base name of the base archive
+     * @param segmentTweets number of tweets after which a segment is closed
+     */
+    public TweetLog(String base, int segmentTweets) throws IOException {
+        this.base = base;
+        this.segmentTweets = segmentTweets;
+        lock = lock(base);
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            lock.close();
+            throw e;
+        }
+        compactor = new Thread(this::compact, "TweetLog compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    // bring the base archive and the segments back to the last whole compaction, and start a new segment
+    private void open() throws IOException {
+        long length = new File(base).length();
+        long[] compacted = compacted(base);
+        int last = -1; // last segment compacted
+        if (compacted != null) {
+            last = (int) compacted[1];
+            checkStamp(base, compacted);
+            if (length > compacted[0]) { // a compaction was cut short: drop what it appended
+                System.out.println("Dropping " + (length - compacted[0]) + " bytes of " + base + " left by an unfinished compaction");
+                try (FileChannel file = FileChannel.open(Paths.get(base), StandardOpenOption.WRITE)) {
+                    file.truncate(compacted[0]);
+                    file.force(true);
+                }
+                length = compacted[0];
+            }
+        }
+        if (compacted == null)
+            recordCompaction(base, length, last); // from now on, every compaction is recorded
+        int[] left = segments(base);
+        for (int s : left) {
+            if (s <= last) new File(segmentName(base, s)).delete(); // compacted, but not deleted before a crash
+            else closed.add(s); // left over by a crash: compact them too
+        }
+        segment = Math.max(last, left.length == 0 ? -1 : left[left.length - 1]) + 1;
+        out = new TweetArchive.Writer(segmentName(base, segment));
+    }
+
+    /**
+     * Append a batch of tweets and flush them to the current segment.
+     * @param batch tweets not logged before
+     * @return the number of tweets appended
+     */
+    public synchronized int append(List<Tweet> batch) throws IOException {
+        if (out == null) throw new IOException("log of " + base + " is closed");
+        if (failure != null) throw failure;
+        long start = System.nanoTime();
+        long bytes = -out.bytes();
+        for (Tweet tweet : batch) {
+            out.add(tweet);
+            if (out.written() >= segmentTweets) bytes += roll();
+        }
+        out.flush();
+        APPENDED_BYTES.add(bytes + out.bytes());
+        APPEND.time(start);
+        return batch.size();
+    }
+
+    // close the current segment, hand it to the compactor and start the next one;
+    // returns the size of the closed segment
+    private long roll() throws IOException {
+        out.close();
+        long bytes = out.bytes();
+        closed.add(segment);
+        segment++;
+        out = new TweetArchive.Writer(segmentName(base, segment));
+        return bytes;
+    }
+
+    // runs on the compactor thread until STOP is queued
+    private void compact() {
+        while (true) {
+            int s;
+            try {
+                s = closed.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (s == STOP) return;
+            try {
+                long start = System.nanoTime();
+                long n = appendTo(segmentName(base, s), base);
+                try (FileChannel file = FileChannel.open(Paths.get(base), StandardOpenOption.WRITE)) {
+                    file.force(true); // on disk before it is recorded
+                }
+                recordCompaction(base, new File(base).length(), s);
+                COMPACTION.time(start);
+                new File(segmentName(base, s)).delete();
+                System.out.println("Compacted " + n + " tweets of segment " + s + " into " + base);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the length of the base archive, the last segment compacted into it and the stamp of the base,
+    // as recorded; null if nothing is
+    private static long[] compacted(String base) throws IOException {
+        File file = new File(base + ".log.compacted");
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not a record of compaction");
+            return new long[] {in.readLong(), in.readInt(), in.readLong()};
+        }
+    }
+
+    // CRC32 of the STAMP_BYTES of the base archive before length; -1 if it is shorter than length
+    private static long stamp(String base, long length) throws IOException {
+        File file = new File(base);
+        if (file.length() < length) return -1;
+        CRC32 crc = new CRC32();
+        if (length == 0) return crc.getValue();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, STAMP_BYTES));
+            long position = length - buffer.capacity();
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, position + buffer.position()) < 0) return -1;
+            buffer.flip();
+            crc.update(buffer);
+        }
+        return crc.getValue();
+    }
+
+    // throw if the base archive is not the one the record of compaction was written for
+    private static void checkStamp(String base, long[] compacted) throws IOException {
+        if (stamp(base, compacted[0]) != compacted[2])
+            throw new IOException(base + " is not the archive its log was compacted into up to byte " + compacted[0]
+                    + "; it was replaced without deleting " + base + ".log.compacted");
+    }
+
+    /**
+     * Lock a base archive against logs and tools that rewrite it. A TweetLog holds the lock
+     * from the time it is opened until it is closed.
+     * @param base name of the base archive
+     * @return the lock, released by closing it
+     * @throws IOException if the base archive is locked already, in this process or another one
+     */
+    public static Closeable lock(String base) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(base + ".log.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this process
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException(base + " is locked by an open log");
+        }
+        return channel; // closing the channel releases the lock
+    }
+
+    /**
+     * @param base name of the base archive
+     * @return true if the log of the base archive has segments on disk, not compacted into it yet
+     */
+    public static boolean hasSegments(String base) {
+        return segments(base).length > 0;
+    }
+
+    /**
+     * @param base name of the base archive
+     * @return the length of the base archive up to the last whole compaction; the whole file if none is recorded
+     * @throws IOException if the base archive was replaced by one the record of compaction doesn't match
+     */
+    public static long compactedLength(String base) throws IOException {
+        long[] compacted = compacted(base);
+        if (compacted == null) return new File(base).length();
+        checkStamp(base, compacted);
+        return compacted[0];
+    }
+
+    /**
+     * Forget any compaction recorded for a base archive, e.g. because a new archive is written over it.
+     * The log then starts recording from the new archive the next time it is opened.
+     * @param base name of the base archive
+     */
+    public static void forgetCompaction(String base) {
+        new File(base + ".log.compacted").delete();
+    }
+
+    // replace the record of compaction: the base archive is whole up to length, and holds the segments up to segment
+    private static void recordCompaction(String base, long length, int segment) throws IOException {
+        long stamp = stamp(base, length);
+        File temp = new File(base + ".log.compacted.tmp");
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeInt(MAGIC);
+            out.writeLong(length);
+            out.writeInt(segment);
+            out.writeLong(stamp);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), Paths.get(base + ".log.compacted"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // copy every tweet of a segment to the end of an archive; a torn last block is dropped
+    private static long appendTo(String segmentFile, String archiveFile) throws IOException {
+        TweetArchive.Reader in = new TweetArchive.Reader(segmentFile);
+        TweetArchive.Writer out = new TweetArchive.Writer(archiveFile, true);
+        try {
+            while (hasNext(in, segmentFile)) out.add(in.next());
+        } finally {
+            in.close();
+            out.close();
+        }
+        COMPACTED_BYTES.add(out.bytes());
+        return out.written();
+    }
+
+    // hasNext, treating a block cut short by a crash as the end of the segment
+    private static boolean hasNext(TweetArchive.Reader in, String filename) {
+        try {
+            return in.hasNext();
+        } catch (UncheckedIOException e) {
+            System.out.println("Ignoring the torn end of " + filename + ": " + e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Close the current segment and wait until every segment is compacted into the base archive.
+     * Closing a closed log does nothing.
+     */
+    public synchronized void close() throws IOException {
+        if (out == null) return;
+        out.close();
+        out = null;
+        closed.add(segment);
+        closed.add(STOP);
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!compactor.isAlive()) lock.close();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Read back every tweet of a log: the base archive, then the segments not yet compacted.
+     * Nothing is changed: the base archive is read up to the end of the last whole compaction,
+     * and the segments already compacted into it are skipped.
+     * @throws IOException if the base archive was replaced by one the record of compaction doesn't match
+     * @param base name of the base archive
+     * @param withText if false, the tweet text is skipped
+     * @param sink receives every tweet, in the order it was logged
+     * @return the number of tweets read
+     */
+    public static long replay(String base, boolean withText, Consumer<Tweet> sink) throws IOException {
+        long[] compacted = compacted(base);
+        long length = new File(base).length();
+        int last = -1;
+        if (compacted != null) {
+            checkStamp(base, compacted);
+            length = compacted[0];
+            last = (int) compacted[1];
+        }
+        ArrayList<String> files = new ArrayList<String>();
+        if (new File(base).exists()) files.add(base);
+        for (int s : segments(base))
+            if (s > last) files.add(segmentName(base, s));
+        long n = 0;
+        for (String file : files) {
+            long size = file.equals(base) ? length : new File(file).length();
+            if (size == 0) continue; // created just before a crash
+            TweetArchive.Reader in = new TweetArchive.Reader(file, withText, size);
+            try {
+                while (hasNext(in, file)) {
+                    sink.accept(in.next());
+                    n++;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @param base name of the base archive
+     * @return the size of the base archive and of the segments of its log, in bytes
+     */
+    public static long size(String base) {
+        long bytes = new File(base).length();
+        for (int s : segments(base)) bytes += new File(segmentName(base, s)).length();
+        return bytes;
+    }
+
+    private static String segmentName(String base, int segment) {
+        return String.format("%s.log.%06d", base, segment);
+    }
+
+    // numbers of the segments of a base archive on disk, in order
+    private static int[] segments(String base) {
+        File file = new File(base).getAbsoluteFile();
+        String prefix = file.getName() + ".log.";
+        String[] names = file.getParentFile().list();
+        if (names == null) return new int[0];
+        int[] found = new int[names.length];
+        int k = 0;
+        for (String name : names)
+            if (name.startsWith(prefix)) {
+                try {
+                    int s = Integer.parseInt(name.substring(prefix.length()));
+                    found[k++] = s;
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        found = Arrays.copyOf(found, k);
+        Arrays.sort(found);
+        return found;
+    }
+
+    /**
+     * Logs an archive in batches, as GatherTweets does, and compares the time of a
+     * checkpoint with the time of rewriting the whole archive.
+     * Usage: java TweetLog alltweets.arc [batchSize]
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java TweetLog alltweets.arc [batchSize]");
+            System.exit(-1);
+        }
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        String base = File.createTempFile("log", ".arc", new File(".")).getPath();
+        new File(base).delete();
+        TweetLog log = new TweetLog(base);
+        ArrayList<Tweet> all = new ArrayList<Tweet>();
+        TweetArchive.Reader in = new TweetArchive.Reader(args[0]);
+        try {
+            while (in.hasNext()) all.add(in.next());
+        } finally {
+            in.close();
+        }
+
+        long append = 0;
+        int batches = 0;
+        for (int i = 0; i < all.size(); i += batchSize) {
+            long start = System.nanoTime();
+            log.append(all.subList(i, Math.min(i + batchSize, all.size())));
+            append += System.nanoTime() - start;
+            batches++;
+        }
+        long start = System.nanoTime();
+        TweetArchive.Writer rewrite = new TweetArchive.Writer(base + ".full");
+        for (Tweet tweet : all) rewrite.add(tweet);
+        rewrite.close();
+        long full = System.nanoTime() - start;
+        log.close();
+
+        long[] n = new long[1];
+        replay(base, true, tweet -> n[0]++);
+        System.out.printf("%d batches of %d: %.3f ms per append, %.1f ms per full rewrite of %d tweets%n",
+                batches, batchSize, append / 1e6 / batches, full / 1e6, all.size());
+        System.out.println("replayed " + n[0] + " tweets" + (n[0] == all.size() ? "" : " MISMATCH"));
+
+        // a crash in the middle of a compaction, after its segment was appended but before it was deleted
+        int last = (int) compacted(base)[1];
+        TweetArchive.Writer leftover = new TweetArchive.Writer(segmentName(base, last));
+        for (Tweet tweet : all.subList(0, Math.min(batchSize, all.size()))) leftover.add(tweet);
+        leftover.close();
+        try (FileOutputStream torn = new FileOutputStream(base, true)) {
+            torn.write(new byte[] {0, 0, 16, 0, 1, 2, 3}); // the start of a block cut short
+        }
+        n[0] = 0;
+        replay(base, true, tweet -> n[0]++);
+        System.out.println("after a crash, replayed " + n[0] + " tweets" + (n[0] == all.size() ? "" : " MISMATCH"));
+        new TweetLog(base).close(); // drops the torn bytes and the compacted segment
+        n[0] = 0;
+        replay(base, true, tweet -> n[0]++);
+        System.out.println("reopened, replayed " + n[0] + " tweets" + (n[0] == all.size() && !new File(segmentName(base, last)).exists() ? "" : " MISMATCH"));
+
+        // the base written over with a longer archive: the log starts from it, and nothing is cut
+        TweetArchive.Writer longer = new TweetArchive.Writer(base);
+        for (int k = 0; k < 2; k++)
+            for (Tweet tweet : all) longer.add(tweet);
+        longer.close();
+        long replaced = new File(base).length();
+        new TweetLog(base).close();
+        n[0] = 0;
+        replay(base, true, tweet -> n[0]++);
+        System.out.println("base rewritten, replayed " + n[0] + " tweets"
+                + (n[0] == 2L * all.size() && new File(base).length() == replaced ? "" : " MISMATCH"));
+
+        // the base replaced behind the log's back: opening the log fails and leaves the file alone
+        Files.copy(Paths.get(base + ".full"), Paths.get(base), StandardCopyOption.REPLACE_EXISTING);
+        try (FileOutputStream more = new FileOutputStream(base, true)) {
+            more.write(Files.readAllBytes(Paths.get(base + ".full")));
+        }
+        replaced = new File(base).length();
+        try {
+            new TweetLog(base).close();
+            System.out.println("base replaced, log opened MISMATCH");
+        } catch (IOException e) {
+            System.out.println("base replaced, log refused: " + e.getMessage()
+                    + (new File(base).length() == replaced ? "" : " MISMATCH"));
+        }
+        new File(base).delete();
+        new File(base + ".full").delete();
+        new File(base + ".log.lock").delete();
+        forgetCompaction(base);
+    }
+}
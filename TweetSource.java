@@ -0,0 +1,24 @@
+import twitter4j.Query;
+import twitter4j.TwitterException;
+
+/**
+ * Where GatherTweets gets its tweets from: the Twitter search API, or a stand-in
+ * that replays an archive so the ingest path can be measured offline.
+ */
+public interface TweetSource {
+
+    /**
+     * Run one search
+     * @param query the search, with its geocode and count set
+     * @return the tweets found, at most query.getCount(), with the rate-limit status if the source has one
+     * @throws TwitterException if the search failed, e.g. because the rate limit was exceeded
+     */
+    SearchResult search(Query query) throws TwitterException;
+
+    /**
+     * @return false once the source will not return any more tweets, e.g. at the end of a replay
+     */
+    default boolean hasMore() {
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+import twitter4j.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Searches tweets with the twitter4j search API.
+ */
+public class TwitterSource implements TweetSource {
+    private final Twitter twitter;
+
+    /**
+     * Uses the Twitter instance configured by twitter4j.properties
+     */
+    public TwitterSource() {
+        this(new TwitterFactory().getInstance());
+    }
+
+    /**
+     * @param twitter the Twitter instance to search with
+     */
+    public TwitterSource(Twitter twitter) {
+        this.twitter = twitter;
+    }
+
+    public SearchResult search(Query query) throws TwitterException {
+        QueryResult result = twitter.search(query);
+        List<Status> statuses = result.getTweets();
+        ArrayList<Tweet> tweets = new ArrayList<Tweet>(statuses.size());
+        for (Status status : statuses) tweets.add(new Tweet(status));
+        RateLimitStatus limit = result.getRateLimitStatus();
+        Query next = result.hasNext() ? result.nextQuery() : null;
+        if (limit == null) return new SearchResult(tweets, -1, -1, next);
+        return new SearchResult(tweets, limit.getRemaining(), limit.getSecondsUntilReset(), next);
+    }
+}
@@ -1,59 +1,116 @@
-import twitter4j.Status;
-import java.util.Date;
+import java.util.ArrayList;
 
 /**
  * @author Alexander Hamme
  * @author Sasha Fedchin
- * 
- * This class contains information about the user, including a BST of this user's tweets.
+ *
+ * This class contains information about the user, including a Timeline of this user's tweets.
+ * The methods are synchronized, so that a user can get new tweets while another thread
+ * reads it; code that walks the timeline() of a shared user holds the user's lock.
  */
 
 public class User {
-    private double isBot; // probability of the user being a bot. 
-    public RedBlackBST<Date, Status> tweets; //all the tweets by this user
+    private double isBot; // probability of the user being a bot.
+    private String screenName; // screen name of the user
+    private Timeline tweets; //times of all the tweets by this user, and optionally the tweets themselves
+    private ArrayList<Tweet> unsaved; // tweets added by putNew since the last checkpoint; null if none
+    private boolean dirty; // true from markDirty until takeUnsaved
 
     /**
-     * sets isBot to defaultValue and initializes the red-black tree
+     * sets isBot to defaultValue and initializes the timeline, keeping the tweets themselves
+     * @param screenName screen name of the user
      */
-    public User() {
+    public User(String screenName) {
+        this(screenName, true);
+    }
+
+    /**
+     * sets isBot to defaultValue and initializes the timeline
+     * @param screenName screen name of the user
+     * @param keepTweets false if only the tweet times are needed, e.g. for analysis
+     */
+    public User(String screenName, boolean keepTweets) {
         isBot=1; //basic probability
-        tweets=new RedBlackBST<>();
+        this.screenName=screenName;
+        tweets=new Timeline(keepTweets);
     }
 
     /**
      * @param multiplier value to multiply by
      */
-    public void updateIsBot(double multiplier) {
+    public synchronized void updateIsBot(double multiplier) {
         isBot *= multiplier;
     }
 
     /**
      * @return isBot
      */
-    public double getIsBot() {
+    public synchronized double getIsBot() {
         return isBot;
     }
 
     /**
-     * put tweets in the RedBlackTree
-     * @param key: key of the value to put into BST
-     * @param val: value itself
-     * @return 1 if the tweet is new, 0 if it is already contained in the tree
+     * put tweets in the Timeline
+     * @param createdAt: time of the tweet in millis, the key in the timeline
+     * @param val: the tweet itself
+     * @return 1 if the tweet is new, 0 if it is already contained in the timeline
+     */
+    public synchronized int put(long createdAt, Tweet val) {
+        return tweets.put(createdAt, val);
+    }
+
+    /**
+     * put a tweet in the Timeline and, if it is new, remember it for the next checkpoint
+     * @param createdAt: time of the tweet in millis, the key in the timeline
+     * @param val: the tweet itself
+     * @return 1 if the tweet is new, 0 if it is already contained in the timeline
+     */
+    public synchronized int putNew(long createdAt, Tweet val) {
+        int added = tweets.put(createdAt, val);
+        if (added == 1) {
+            if (unsaved == null) unsaved = new ArrayList<Tweet>();
+            unsaved.add(val);
+        }
+        return added;
+    }
+
+    /**
+     * Mark this user as changed since the last checkpoint
+     * @return true if the user was not marked yet, i.e. it should be queued for the next checkpoint
+     */
+    public synchronized boolean markDirty() {
+        if (dirty) return false;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Take the tweets added by putNew since the last checkpoint and mark the user clean
+     * @return the new tweets, oldest put first; empty if none
+     */
+    public synchronized ArrayList<Tweet> takeUnsaved() {
+        ArrayList<Tweet> taken = unsaved == null ? new ArrayList<Tweet>(0) : unsaved;
+        unsaved = null;
+        dirty = false;
+        return taken;
+    }
+
+    /**
+     * @return the number of tweets by this user
      */
-    public int put(Date key, Status val) {
-        int oldSize=tweets.size();
-        tweets.put(key,val);
-        return tweets.size()-oldSize;
+    public synchronized int size() {
+        return tweets.size();
     }
 
     /**
-     * @return RedBlackTree
+     * @return Timeline of this user's tweets; synchronize on the user while reading it
+     * if other threads may be adding tweets
      */
-    public RedBlackBST get() {
+    public Timeline timeline() {
         return tweets;
     }
 
     public String userName() {
-        return (String)(tweets.iterator().next().getUser().getScreenName());
+        return screenName;
     }
 }